@@ -1,11 +1,18 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates, each over a single column, can be grouped
+ * by any number of columns; all of them are computed in one pass over the
+ * child.
+ * <p>
+ * At most {@link #getMaxGroups} groups are held in memory. Past that, the
+ * tuples of new groups are partitioned by a hash of their group-by fields
+ * to temporary files, which are aggregated one at a time once the child is
+ * exhausted, partitioning again if a partition still holds too many groups.
  */
 public class Aggregate extends Operator {
 
@@ -13,6 +20,20 @@ public class Aggregate extends Operator {
     private DbIterator child;
     private int afield,gfield;
     private Aggregator.Op aop;
+    private int[] gfields;
+    private int[] afields;
+    private Aggregator.Op[] aops;
+
+    /** Default number of groups kept in memory before groups are spilled */
+    public static final int DEFAULT_MAX_GROUPS = 1 << 20;
+    // partitions per spilling pass, and passes before spilling is given up
+    private static final int FANOUT = 16;
+    private static final int MAX_LEVEL = 8;
+    private int maxGroups = DEFAULT_MAX_GROUPS;
+
+    private transient DbIterator iteragg;
+    private transient boolean aggregated;
+    private transient ArrayDeque<Partition> pending;
 
     /**
      * Constructor.
@@ -34,15 +55,60 @@ public class Aggregate extends Operator {
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
 	// some code goes here
+    	this(child, gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+    			new int[] { afield }, new Aggregator.Op[] { aop });
+    }
+
+    /**
+     * Constructor for several aggregates grouped by several columns.
+     * 
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @param afields
+     *            The column of each aggregate
+     * @param aops
+     *            The aggregation operator of each aggregate
+     */
+    public Aggregate(DbIterator child, int[] gfields, int[] afields, Aggregator.Op[] aops) {
+    	if (afields.length == 0 || afields.length != aops.length)
+    		throw new IllegalArgumentException("need one operator per aggregate field");
     	this.child = child;
-    	this.afield = afield;
-    	this.gfield = gfield;
-    	this.aop = aop;
+    	this.gfields = gfields;
+    	this.afields = afields;
+    	this.aops = aops;
+    	this.gfield = gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+    	this.afield = afields[0];
+    	this.aop = aops[0];
     }
 
     /**
-     * @return If this aggregate is accompanied by a groupby, return the groupby
-     *         field index in the <b>INPUT</b> tuples. If not, return
+     * @return the group-by field indexes in the <b>INPUT</b> tuples; empty if
+     *         there is no grouping
+     * */
+    public int[] groupFields() {
+    	return gfields.clone();
+    }
+
+    /**
+     * @return the field index of each aggregate in the <b>INPUT</b> tuples
+     * */
+    public int[] aggregateFields() {
+    	return afields.clone();
+    }
+
+    /**
+     * @return the operator of each aggregate
+     * */
+    public Aggregator.Op[] aggregateOps() {
+    	return aops.clone();
+    }
+
+    /**
+     * @return If this aggregate is accompanied by a groupby, return the (first)
+     *         groupby field index in the <b>INPUT</b> tuples. If not, return
      *         {@link simpledb.Aggregator#NO_GROUPING}
      * */
     public int groupField() {
@@ -105,37 +171,207 @@ public class Aggregate extends Operator {
      * the result tuple should contain one field representing the result of the
      * aggregate. Should return null if there are no more tuples.
      */
-    private DbIterator iteragg;
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
     	// some code goes here
-		if (iteragg == null) {
-            if (child == null) return null;
-            Aggregator ag = null;
-            Type gtype = (gfield == -1) ? null : child.getTupleDesc().getFieldType(gfield);
-            if (child.getTupleDesc().getFieldType(afield).equals(Type.INT_TYPE))
-                ag = new IntegerAggregator(gfield, gtype, afield, aop);
-            else
-                ag = new StringAggregator(gfield, gtype, afield, aop);
-            while (child.hasNext())
-                ag.mergeTupleIntoGroup(child.next());
-            iteragg = ag.iterator();
-            iteragg.open();
-        }
-        if (iteragg.hasNext()) return iteragg.next();
-        return null;
+    	while (true) {
+    		if (iteragg != null && iteragg.hasNext())
+    			return iteragg.next();
+    		if (!aggregated) {
+    			aggregated = true;
+    			pending = new ArrayDeque<Partition>();
+    			Pass pass = new Pass(0);
+    			// consume the child a batch at a time
+    			BatchIterator input = BatchAdapter.wrap(child);
+    			TupleBatch batch;
+    			while ((batch = input.nextBatch()) != null)
+    				pass.add(batch);
+    			iteragg = pass.finish();
+    		} else if (!pending.isEmpty()) {
+    			Partition part = pending.poll();
+    			try {
+    				iteragg = aggregate(part);
+    			} finally {
+    				part.file.delete();
+    			}
+    		} else {
+    			return null;
+    		}
+    		iteragg.open();
+    	}
+    }
+
+    /**
+     * Sets the number of groups kept in memory; the groups found after that
+     * are partitioned to temporary files and aggregated a partition at a
+     * time.
+     */
+    public void setMaxGroups(int maxGroups) {
+    	if (maxGroups < 1)
+    		throw new IllegalArgumentException("maxGroups must be positive");
+    	this.maxGroups = maxGroups;
+    }
+
+    public int getMaxGroups() {
+    	return maxGroups;
+    }
+
+    private Aggregator newAggregator() {
+    	TupleDesc ctd = child.getTupleDesc();
+    	if (gfields.length > 1 || afields.length > 1) {
+    		Type[] gtypes = new Type[gfields.length];
+    		for (int i = 0; i < gfields.length; i++)
+    			gtypes[i] = ctd.getFieldType(gfields[i]);
+    		Type[] atypes = new Type[afields.length];
+    		for (int i = 0; i < afields.length; i++)
+    			atypes[i] = ctd.getFieldType(afields[i]);
+    		return new GroupAggregator(gfields, gtypes, afields, atypes, aops);
+    	}
+    	Type gtype = (gfield == -1) ? null : ctd.getFieldType(gfield);
+    	if (ctd.getFieldType(afield).equals(Type.INT_TYPE))
+    		return new IntegerAggregator(gfield, gtype, afield, aop);
+    	return new StringAggregator(gfield, gtype, afield, aop);
+    }
+
+    /** Aggregates the tuples of a spilled partition, which may spill again. */
+    private DbIterator aggregate(Partition part) throws DbException {
+    	Pass pass = new Pass(part.level + 1);
+    	TupleBatch batch = new TupleBatch(part.file.getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+    	try {
+    		Tuple t;
+    		while ((t = part.file.next()) != null) {
+    			batch.addTuple(t);
+    			if (batch.isFull()) {
+    				pass.add(batch);
+    				batch.clear();
+    			}
+    		}
+    	} catch (IOException e) {
+    		pass.abort();
+    		throw new DbException("could not read spilled groups: " + e.getMessage());
+    	}
+    	if (batch.size() > 0)
+    		pass.add(batch);
+    	return pass.finish();
+    }
+
+    /** A spilled partition of the input and the pass it was spilled by. */
+    private static class Partition {
+    	final SpillFile file;
+    	final int level;
+
+    	Partition(SpillFile file, int level) {
+    		this.file = file;
+    		this.level = level;
+    	}
+    }
+
+    /**
+     * One pass of hash aggregation. Groups are kept in memory until there
+     * are maxGroups of them; after that, tuples of those groups are still
+     * merged in memory, and the others are hashed on their group-by fields
+     * to one of FANOUT partition files. Each pass hashes with a different
+     * seed, so groups that shared a partition are split by the next pass.
+     */
+    private class Pass {
+    	private final int level;
+    	private final Aggregator ag = newAggregator();
+    	private final boolean canSpill;
+    	private SpillFile[] parts;
+
+    	Pass(int level) {
+    		this.level = level;
+    		// without grouping there is only one group; past MAX_LEVEL the
+    		// groups are taken to be skewed beyond what partitioning can split
+    		this.canSpill = gfields.length > 0 && level < MAX_LEVEL;
+    	}
+
+    	void add(TupleBatch batch) throws DbException {
+    		if (!canSpill || ag.numGroups() + batch.size() <= maxGroups) {
+    			ag.mergeBatch(batch);
+    			return;
+    		}
+    		int[] sel = batch.getSelection();
+    		for (int i = 0; i < batch.size(); i++) {
+    			Tuple t = batch.getTuple(sel[i]);
+    			if (ag.mergeIntoExistingGroup(t))
+    				continue;
+    			if (ag.numGroups() < maxGroups)
+    				ag.mergeTupleIntoGroup(t);
+    			else
+    				spill(t);
+    		}
+    	}
+
+    	private void spill(Tuple t) throws DbException {
+    		try {
+    			if (parts == null)
+    				parts = new SpillFile[FANOUT];
+    			int p = partition(t);
+    			if (parts[p] == null)
+    				parts[p] = new SpillFile(child.getTupleDesc());
+    			parts[p].add(t);
+    		} catch (IOException e) {
+    			abort();
+    			throw new DbException("could not spill groups: " + e.getMessage());
+    		}
+    	}
+
+    	private int partition(Tuple t) {
+    		int h = 0;
+    		for (int f : gfields)
+    			h = h * 31 + t.getField(f).hashCode();
+    		return SpillFile.partition(h, level, FANOUT);
+    	}
+
+    	/** @return an iterator over the groups kept in memory */
+    	DbIterator finish() throws DbException {
+    		if (parts != null) {
+    			for (SpillFile f : parts) {
+    				if (f == null)
+    					continue;
+    				try {
+    					f.finish();
+    				} catch (IOException e) {
+    					abort();
+    					throw new DbException("could not spill groups: " + e.getMessage());
+    				}
+    				pending.add(new Partition(f, level));
+    			}
+    		}
+    		return ag.iterator();
+    	}
+
+    	void abort() {
+    		if (parts != null) {
+    			for (SpillFile f : parts) {
+    				if (f != null)
+    					f.delete();
+    			}
+    		}
+    	}
+    }
+
+    private void dropPending() {
+    	if (pending != null) {
+    		for (Partition part : pending)
+    			part.file.delete();
+    		pending = null;
+    	}
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
     	// some code goes here
     	child.rewind();
     	iteragg = null;
+    	aggregated = false;
+    	dropPending();
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate. The group by fields come
+     * first, in order, followed by one column per aggregate. With a single
+     * aggregate and no group by field, this has one field - the aggregate
+     * column.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -144,26 +380,28 @@ public class Aggregate extends Operator {
      */
     public TupleDesc getTupleDesc() {
 	// some code goes here
-		Type[] types = null;
-        String[] names = null;
-		if (gfield == -1) {
-            types = new Type[1];
-            names = new String[1];
-            types[0] = child.getTupleDesc().getFieldType(afield);
-            names[0] = aop.toString() + "(" + child.getTupleDesc().getFieldName(afield) + ")";
-        } else {
-            types = new Type[2];
-            names = new String[2];
-            types[0] = child.getTupleDesc().getFieldType(gfield);
-            names[0] = child.getTupleDesc().getFieldName(gfield);
-            types[1] = child.getTupleDesc().getFieldType(afield);
-            names[1] = aop.toString() + "(" + child.getTupleDesc().getFieldName(afield) + ")";
+		TupleDesc ctd = child.getTupleDesc();
+		Type[] types = new Type[gfields.length + afields.length];
+        String[] names = new String[types.length];
+		for (int i = 0; i < gfields.length; i++) {
+            types[i] = ctd.getFieldType(gfields[i]);
+            names[i] = ctd.getFieldName(gfields[i]);
+        }
+		for (int i = 0; i < afields.length; i++) {
+            int col = gfields.length + i;
+            // a single aggregate keeps the type of its field
+            types[col] = afields.length == 1 && gfields.length <= 1
+                    ? ctd.getFieldType(afields[i]) : Type.INT_TYPE;
+            names[col] = aops[i].toString() + "(" + ctd.getFieldName(afields[i]) + ")";
         }
         return new TupleDesc(types, names);
     }
 
     public void close() {
     	// some code goes here	
+    	dropPending();
+    	iteragg = null;
+    	aggregated = false;
     	child.close();
     	super.close();
     }
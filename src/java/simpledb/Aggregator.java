@@ -76,6 +76,32 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge a tuple into the aggregate only if its group has been
+     * encountered already.
+     *
+     * @param tup the Tuple containing an aggregate field and a group-by field
+     * @return true if the tuple was merged
+     */
+    public boolean mergeIntoExistingGroup(Tuple tup);
+
+    /**
+     * @return the number of groups encountered so far
+     */
+    public int numGroups();
+
+    /**
+     * Merge the selected rows of a batch into the aggregate, as if each was
+     * passed to {@link #mergeTupleIntoGroup}.
+     *
+     * @param batch the rows to merge
+     */
+    public default void mergeBatch(TupleBatch batch) {
+        int[] sel = batch.getSelection();
+        for (int i = 0; i < batch.size(); i++)
+            mergeTupleIntoGroup(batch.getTuple(sel[i]));
+    }
+
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
@@ -0,0 +1,341 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BTreeBulkLoader builds a B+ tree bottom-up from a stream of tuples, instead
+ * of inserting them one at a time and splitting pages as they fill.
+ * <p>
+ * The input is first sorted on the key field with an {@link ExternalSort}.
+ * Since the number of tuples is then known, the shape of the whole tree can
+ * be worked out before anything is written: every level gets as few pages as
+ * the fill factor allows, the items of a level are spread evenly over its
+ * pages, and pages are numbered level by level, leaves first and the root
+ * last. With the shape known every parent and sibling pointer is known too,
+ * so each page is written exactly once, in a single pass over the sorted
+ * tuples that keeps only one open page per level in memory.
+ */
+public class BTreeBulkLoader {
+
+	/** Default fraction of each page's slots the loader fills. */
+	public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+	/** Default number of tuples the sort keeps in memory. */
+	public static final int DEFAULT_SORT_TUPLES = 1 << 16;
+
+	/** Number of leaf pages written together. */
+	private static final int LEAF_RUN_PAGES = 64;
+
+	private final double fillFactor;
+	private final int sortTuples;
+
+	/**
+	 * Creates a loader with the default fill factor and sort memory.
+	 */
+	public BTreeBulkLoader() {
+		this(DEFAULT_FILL_FACTOR, DEFAULT_SORT_TUPLES);
+	}
+
+	/**
+	 * Creates a loader.
+	 *
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1;
+	 * lower values leave room for later inserts before pages split
+	 * @param sortTuples - the number of tuples to sort in memory before
+	 * spilling sorted runs to disk
+	 */
+	public BTreeBulkLoader(double fillFactor, int sortTuples) {
+		if(fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		}
+		this.fillFactor = fillFactor;
+		this.sortTuples = sortTuples;
+	}
+
+	/**
+	 * Build a B+ tree index over a table that is already in the Catalog and
+	 * add the index to the Catalog under indexName.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param tableName - the name of the table to index
+	 * @param keyField - the index of the field the B+ tree is keyed on
+	 * @param bFile - the empty or missing file to back the new BTreeFile
+	 * @param indexName - the name to register the new BTreeFile under
+	 * @return the new BTreeFile
+	 */
+	public BTreeFile createIndex(TransactionId tid, String tableName, int keyField,
+			File bFile, String indexName)
+					throws DbException, IOException, TransactionAbortedException {
+		int tableId = Database.getCatalog().getTableId(tableName);
+		DbFile table = Database.getCatalog().getDatabaseFile(tableId);
+		DbFileIterator it = table.iterator(tid);
+		it.open();
+		try {
+			return load(it, table.getTupleDesc(), keyField, bFile, indexName);
+		} finally {
+			it.close();
+		}
+	}
+
+	/**
+	 * Build a B+ tree from tuples and add it to the Catalog under name.
+	 *
+	 * @param tuples - an open iterator over the tuples to load
+	 * @param td - the schema of the tuples
+	 * @param keyField - the index of the field the B+ tree is keyed on
+	 * @param bFile - the empty or missing file to back the new BTreeFile
+	 * @param name - the name to register the new BTreeFile under
+	 * @return the new BTreeFile
+	 * @throws DbException if bFile already holds data
+	 *
+	 * If the load fails, the Catalog maps name back to the table it had
+	 * before, if any, and bFile is removed.
+	 */
+	public BTreeFile load(DbFileIterator tuples, TupleDesc td, int keyField,
+			File bFile, String name)
+					throws DbException, IOException, TransactionAbortedException {
+		if(bFile.length() > 0) {
+			throw new DbException("bulk loading needs an empty file");
+		}
+		Catalog catalog = Database.getCatalog();
+		DbFile previous = null;
+		String previousKey = null;
+		try {
+			previous = catalog.getDatabaseFile(catalog.getTableId(name));
+			previousKey = catalog.getPrimaryKey(previous.getId());
+		}
+		catch(NoSuchElementException e) {
+			// name is new
+		}
+		// pages of the tree look up its schema in the Catalog as they are built
+		BTreeFile bf = new BTreeFile(bFile, keyField, td);
+		catalog.addTable(bf, name);
+
+		ExternalSort sort = new ExternalSort(td,
+				new BTreeFileEncoder.TupleComparator(keyField), sortTuples);
+		boolean built = false;
+		try {
+			while(tuples.hasNext()) {
+				sort.add(tuples.next());
+			}
+			sort.finish();
+			if(sort.size() > 0) {
+				new Builder(bf, td, keyField, sort).build();
+			}
+			else {
+				// a tree whose root is a single empty leaf
+				bf.writePage(new BTreeLeafPage(new BTreePageId(bf.getId(), 1, BTreePageId.LEAF),
+						BTreeLeafPage.createEmptyPageData(), keyField));
+				bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(bf.getId()),
+						BTreeFileEncoder.convertToRootPtrPage(1, BTreePageId.LEAF, 0)));
+			}
+			built = true;
+		} finally {
+			sort.close();
+			if(!built) {
+				// do not leave a half-written tree registered
+				if(previous != null) {
+					catalog.addTable(previous, name, previousKey);
+				}
+				else {
+					catalog.removeTable(name);
+				}
+				bf.close();
+				bFile.delete();
+			}
+		}
+		return bf;
+	}
+
+	/**
+	 * Work out how many pages a level of the tree needs.
+	 *
+	 * @param items - the number of tuples or children on the level
+	 * @param target - how many items to put on a page, given the fill factor
+	 * @param min - how many items a non-root page must hold at least
+	 * @return the number of pages
+	 */
+	static int pagesFor(long items, int target, int min) {
+		long pages = (items + target - 1) / target;
+		// spreading the items evenly must not leave pages underfull
+		while(pages > 1 && items / pages < min) {
+			pages--;
+		}
+		return (int) pages;
+	}
+
+	/** Writes one tree; all state for a single load. */
+	private class Builder {
+		final BTreeFile bf;
+		final TupleDesc td;
+		final Type[] types;
+		final int keyField;
+		final ExternalSort sort;
+		final int tableid;
+		final int pageSize = BufferPool.getPageSize();
+
+		// level 0 holds the leaves, the last level the root
+		final long[] items;
+		final int[] pages;
+		final int[] firstPage;
+		// the page being filled on each internal level and its children
+		final int[] current;
+		final ArrayList<ArrayList<BTreeEntry>> open;
+		final ArrayList<ArrayList<Field>> openKeys;
+		final ArrayList<ArrayList<BTreePageId>> openChildren;
+
+		Builder(BTreeFile bf, TupleDesc td, int keyField, ExternalSort sort) {
+			this.bf = bf;
+			this.td = td;
+			this.keyField = keyField;
+			this.sort = sort;
+			this.tableid = bf.getId();
+			this.types = new Type[td.numFields()];
+			for(int i = 0; i < types.length; i++) {
+				types[i] = td.getFieldType(i);
+			}
+
+			int maxTuples = maxTuples();
+			int maxChildren = maxEntries() + 1;
+			ArrayList<Long> itemList = new ArrayList<Long>();
+			ArrayList<Integer> pageList = new ArrayList<Integer>();
+			long n = sort.size();
+			int p = pagesFor(n, Math.max(1, (int) (fillFactor * maxTuples)), maxTuples / 2);
+			itemList.add(n);
+			pageList.add(p);
+			while(p > 1) {
+				n = p;
+				p = pagesFor(n, Math.max(2, (int) (fillFactor * maxChildren)),
+						maxEntries() / 2 + 1);
+				itemList.add(n);
+				pageList.add(p);
+			}
+			int levels = pageList.size();
+			this.items = new long[levels];
+			this.pages = new int[levels];
+			this.firstPage = new int[levels];
+			int next = 1;
+			for(int l = 0; l < levels; l++) {
+				items[l] = itemList.get(l);
+				pages[l] = pageList.get(l);
+				firstPage[l] = next;
+				next += pages[l];
+			}
+			this.current = new int[levels];
+			this.open = new ArrayList<ArrayList<BTreeEntry>>();
+			this.openKeys = new ArrayList<ArrayList<Field>>();
+			this.openChildren = new ArrayList<ArrayList<BTreePageId>>();
+			for(int l = 0; l < levels; l++) {
+				open.add(new ArrayList<BTreeEntry>());
+				openKeys.add(new ArrayList<Field>());
+				openChildren.add(new ArrayList<BTreePageId>());
+			}
+		}
+
+		/** Slots on a leaf page; see BTreeFileEncoder.convertToLeafPage */
+		int maxTuples() {
+			int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE;
+			return (pageSize * 8 - pointerbytes * 8) / (td.getSize() * 8 + 1);
+		}
+
+		/** Entries on an internal page; see BTreeFileEncoder.convertToInternalPage */
+		int maxEntries() {
+			int nentrybytes = types[keyField].getLen() + BTreeInternalPage.INDEX_SIZE;
+			int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1;
+			return (pageSize * 8 - pointerbytes * 8 - 1) / (nentrybytes * 8 + 1);
+		}
+
+		/** Number of items page i of the given level receives */
+		int quota(int level, int i) {
+			long base = items[level] / pages[level];
+			long extra = items[level] % pages[level];
+			return (int) (base + (i < extra ? 1 : 0));
+		}
+
+		BTreePageId pageId(int level, int i) {
+			int categ = level == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+			return new BTreePageId(tableid, firstPage[level] + i, categ);
+		}
+
+		/** The parent of the next page completed on level */
+		BTreePageId parentOf(int level) {
+			if(level + 1 == pages.length) {
+				return BTreeRootPtrPage.getId(tableid);
+			}
+			return pageId(level + 1, current[level + 1]);
+		}
+
+		void build() throws DbException, IOException {
+			ArrayList<Page> run = new ArrayList<Page>(LEAF_RUN_PAGES);
+			ArrayList<Tuple> leaf = new ArrayList<Tuple>();
+			for(int i = 0; i < pages[0]; i++) {
+				int quota = quota(0, i);
+				leaf.clear();
+				for(int j = 0; j < quota; j++) {
+					leaf.add(sort.next());
+				}
+				BTreePageId pid = pageId(0, i);
+				BTreeLeafPage page = new BTreeLeafPage(pid, BTreeFileEncoder.convertToLeafPage(
+						leaf, pageSize, types.length, types, keyField), keyField);
+				page.setParentId(parentOf(0));
+				page.setLeftSiblingId(i > 0 ? pageId(0, i - 1) : null);
+				page.setRightSiblingId(i + 1 < pages[0] ? pageId(0, i + 1) : null);
+				run.add(page);
+				if(run.size() == LEAF_RUN_PAGES) {
+					bf.writePages(run);
+					run.clear();
+				}
+				addChild(1, leaf.get(0).getField(keyField), pid);
+			}
+			if(!run.isEmpty()) {
+				bf.writePages(run);
+			}
+
+			int root = pages.length - 1;
+			int rootCategory = root == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+			bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid),
+					BTreeFileEncoder.convertToRootPtrPage(firstPage[root], rootCategory, 0)));
+		}
+
+		/**
+		 * Add a completed page of level-1 to the open page of level, and write
+		 * the open page out once it has all its children.
+		 *
+		 * @param minKey - the smallest key under the completed page
+		 */
+		void addChild(int level, Field minKey, BTreePageId child)
+				throws DbException, IOException {
+			if(level == pages.length) {
+				return; // child is the root
+			}
+			ArrayList<Field> keys = openKeys.get(level);
+			ArrayList<BTreePageId> children = openChildren.get(level);
+			keys.add(minKey);
+			children.add(child);
+			int i = current[level];
+			if(children.size() < quota(level, i)) {
+				return;
+			}
+
+			// the key of each entry is the smallest key under its right child
+			ArrayList<BTreeEntry> entries = open.get(level);
+			entries.clear();
+			for(int c = 1; c < children.size(); c++) {
+				entries.add(new BTreeEntry(keys.get(c), children.get(c - 1), children.get(c)));
+			}
+			BTreePageId pid = pageId(level, i);
+			int childCategory = level == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+			BTreeInternalPage page = new BTreeInternalPage(pid, BTreeFileEncoder.convertToInternalPage(
+					entries, pageSize, types[keyField], childCategory), keyField);
+			page.setParentId(parentOf(level));
+			bf.writePage(page);
+
+			Field pageMin = keys.get(0);
+			keys.clear();
+			children.clear();
+			current[level]++;
+			addChild(level + 1, pageMin, pid);
+		}
+	}
+}
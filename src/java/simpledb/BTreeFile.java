@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 import simpledb.Predicate.Op;
@@ -25,6 +26,7 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private volatile MappedFileReader mapping; // non-null in memory-mapped mode
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -70,6 +72,31 @@ public class BTreeFile implements DbFile {
 		return td;
 	}
 
+	/**
+	 * Switches between reading pages from a stream on the file (the default)
+	 * and serving them from a memory mapping of the file. The mapped mode
+	 * suits read-mostly indexes; writes go through the normal path either way.
+	 * 
+	 * @param mapped - true to read pages through a memory mapping
+	 */
+	public void setMemoryMapped(boolean mapped) {
+		this.mapping = mapped ? new MappedFileReader(f) : null;
+	}
+
+	/**
+	 * Returns true if pages are read through a memory mapping
+	 */
+	public boolean isMemoryMapped() {
+		return mapping != null;
+	}
+
+	/**
+	 * Close the channel on the file
+	 */
+	public void close() {
+		FileChannelPool.close(f);
+	}
+
 	/**
 	 * Read a page from the file on disk. This should not be called directly
 	 * but should be called from the BufferPool via getPage()
@@ -79,63 +106,65 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
+		byte pageBuf[];
+		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+			pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
+		}
+		else {
+			pageBuf = new byte[BufferPool.getPageSize()];
+		}
+		long offset = pageOffset(id);
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
-			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
+			MappedFileReader m = mapping;
+			if (m != null) {
+				if (!m.read(offset, pageBuf)) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
-				if (retval < BTreeRootPtrPage.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-				}
-				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
-				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
-				return p;
 			}
 			else {
-				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) != 
-						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
+				int retval = FileChannelPool.read(f, ByteBuffer.wrap(pageBuf), offset);
+				if (retval == 0) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
-				if (retval < BufferPool.getPageSize()) {
+				if (retval < pageBuf.length) {
 					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
-				}
-				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
-				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
-				}
-				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
-				}
-				else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
+							+ pageBuf.length + " bytes from BTreeFile");
 				}
 			}
+			Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
+			return createPage(id, pageBuf);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
+		}
+	}
+
+	/**
+	 * Returns the offset of a page within the file. The root pointer page
+	 * comes first, followed by the numbered pages starting at 1.
+	 */
+	private long pageOffset(PageId id) {
+		if(id instanceof BTreePageId && ((BTreePageId) id).pgcateg() == BTreePageId.ROOT_PTR) {
+			return 0;
+		}
+		return BTreeRootPtrPage.getPageSize() + (long) (id.pageNumber()-1) * BufferPool.getPageSize();
+	}
+
+	/**
+	 * Construct the page object for id from its on-disk bytes
+	 */
+	private Page createPage(BTreePageId id, byte[] pageBuf) throws IOException {
+		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+			return new BTreeRootPtrPage(id, pageBuf);
+		}
+		else if(id.pgcateg() == BTreePageId.INTERNAL) {
+			return new BTreeInternalPage(id, pageBuf, keyField);
+		}
+		else if(id.pgcateg() == BTreePageId.LEAF) {
+			return new BTreeLeafPage(id, pageBuf, keyField);
+		}
+		else { // id.pgcateg() == BTreePageId.HEADER
+			return new BTreeHeaderPage(id, pageBuf);
 		}
 	}
 
@@ -146,19 +175,18 @@ public class BTreeFile implements DbFile {
 	 * @param page - the page to write to disk
 	 */
 	public void writePage(Page page) throws IOException {
-		BTreePageId id = (BTreePageId) page.getId();
-		
-		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
-		}
-		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+		FileChannelPool.write(f, page.getPageData(), pageOffset(page.getId()));
+	}
+
+	// see DbFile.java for javadocs
+	public void writePages(List<Page> pages) throws IOException {
+		long[] offsets = new long[pages.size()];
+		byte[][] data = new byte[pages.size()][];
+		for (int i = 0; i < pages.size(); i++) {
+			offsets[i] = pageOffset(pages.get(i).getId());
+			data[i] = pages.get(i).getPageData();
 		}
+		FileChannelPool.writeAll(f, offsets, data);
 	}
 	
 	/**
@@ -176,6 +204,23 @@ public class BTreeFile implements DbFile {
 		return keyField;
 	}
 
+	/**
+	 * Estimates the number of pages read to find the first leaf page of a key:
+	 * the root pointer page, one internal page per level of the tree, and the
+	 * leaf. The height of the tree is estimated from its number of pages and
+	 * the number of children an internal page holds.
+	 */
+	public int estimateProbePages() {
+		int keySize = td.getFieldType(keyField).getLen();
+		// as in BTreeInternalPage.getMaxEntries(), plus the extra child pointer
+		int fanout = (BufferPool.getPageSize() * 8 - 2 * BTreePage.INDEX_SIZE * 8 - 9)
+				/ (keySize * 8 + BTreePage.INDEX_SIZE * 8 + 1) + 1;
+		int levels = 0;
+		for (long reach = 1; reach < numPages(); reach *= fanout)
+			levels++;
+		return 2 + levels;
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
@@ -1019,13 +1064,10 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				FileChannelPool.write(f, emptyRootPtrData, 0);
+				FileChannelPool.write(f, emptyLeafData, emptyRootPtrData.length);
 			}
 		}
 
@@ -1081,11 +1123,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				FileChannelPool.write(f, emptyData, FileChannelPool.size(f));
 				emptyPageNo = numPages();
 			}
 		}
@@ -1116,10 +1155,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		FileChannelPool.write(f, BTreePage.createEmptyPageData(), pageOffset(newPageId));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1247,8 +1283,18 @@ public class BTreeFile implements DbFile {
  */
 class BTreeFileIterator extends AbstractDbFileIterator {
 
+	/** Leaf pages are read in right sibling order */
+	private static final Prefetcher.Successor RIGHT_SIBLINGS = new Prefetcher.Successor() {
+		public PageId next(Page page) {
+			if (!(page instanceof BTreeLeafPage))
+				return null;
+			return ((BTreeLeafPage) page).getRightSiblingId();
+		}
+	};
+
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	Prefetcher prefetcher = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1272,6 +1318,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		BTreePageId root = rootPtr.getRootId();
 		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 		it = curp.iterator();
+		prefetcher = new Prefetcher(RIGHT_SIBLINGS);
+		prefetcher.advance(curp);
 	}
 
 	/**
@@ -1291,8 +1339,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 				curp = null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				curp = (BTreeLeafPage) Database.getBufferPool().getScanPage(tid,
 						nextp, Permissions.READ_ONLY);
+				prefetcher.advance(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1319,6 +1368,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		if (prefetcher != null) {
+			prefetcher.close();
+			prefetcher = null;
+		}
 	}
 }
 
@@ -4,9 +4,11 @@ import java.util.*;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate. It can be reopened with a new predicate, which
+ * starts a new search of the tree, so that a join can probe it once per
+ * outer tuple.
  */
-public class BTreeScan implements DbIterator {
+public class BTreeScan implements IndexDbIterator {
 
 	private static final long serialVersionUID = 1L;
 
@@ -15,6 +17,7 @@ public class BTreeScan implements DbIterator {
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
 	private transient DbFileIterator it;
+	private int tableid;
 	private String tablename;
 	private String alias;
 
@@ -75,13 +78,9 @@ public class BTreeScan implements DbIterator {
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
 		this.alias = tableAlias;
+		this.tableid = tableid;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
-			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
-		}
-		else {
-			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
-		}
+		this.it = newIterator();
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
 		Type[] newTypes = new Type[myTd.numFields()];
@@ -99,6 +98,30 @@ public class BTreeScan implements DbIterator {
 		this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
 	}
 
+	private DbFileIterator newIterator() {
+		if(ipred == null) {
+			return Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+		}
+		else {
+			return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+		}
+	}
+
+	/**
+	 * @return the id of the table this operator scans
+	 */
+	public int getTableId() {
+		return this.tableid;
+	}
+
+	/**
+	 * @return the predicate of the current scan, or null if it returns all
+	 *         tuples
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
 	public void open() throws DbException, TransactionAbortedException {
 		if (isOpen)
 			throw new DbException("double open on one DbIterator.");
@@ -144,4 +167,19 @@ public class BTreeScan implements DbIterator {
 		close();
 		open();
 	}
+
+	public void open(IndexPredicate ipred) throws NoSuchElementException,
+	DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one DbIterator.");
+		this.ipred = ipred;
+		this.it = newIterator();
+		open();
+	}
+
+	public void rewind(IndexPredicate ipred) throws DbException,
+	TransactionAbortedException {
+		close();
+		open(ipred);
+	}
 }
@@ -0,0 +1,63 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * BatchAdapter gives any DbIterator the {@link BatchIterator} interface by
+ * collecting its tuples into batches. All other methods are passed through to
+ * the wrapped iterator.
+ */
+public class BatchAdapter implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+    private final DbIterator child;
+    private transient TupleBatch batch;
+
+    public BatchAdapter(DbIterator child) {
+        this.child = child;
+    }
+
+    /**
+     * @return it if it can return batches itself, otherwise an adapter
+     *         around it
+     */
+    public static BatchIterator wrap(DbIterator it) {
+        if (it instanceof BatchIterator)
+            return (BatchIterator) it;
+        return new BatchAdapter(it);
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (batch == null)
+            batch = new TupleBatch(child.getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+        batch.clear();
+        while (!batch.isFull() && child.hasNext())
+            batch.addTuple(child.next());
+        return batch.size() == 0 ? null : batch;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        return child.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        return child.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+    }
+}
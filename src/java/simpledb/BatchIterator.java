@@ -0,0 +1,23 @@
+package simpledb;
+
+/**
+ * BatchIterator is implemented by operators that can return their output a
+ * batch of rows at a time, as well as one tuple at a time through the
+ * {@link DbIterator} methods. A caller picks one of the two ways for the
+ * life of an open iterator; it must not mix next() and nextBatch().
+ *
+ * @see TupleBatch
+ * @see BatchAdapter
+ */
+public interface BatchIterator extends DbIterator {
+
+    /**
+     * Returns the next batch of rows. A returned batch holds at least one
+     * selected row, and is only valid until the next call to any method of
+     * this iterator.
+     *
+     * @return the next batch, or null if there are no more rows
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+}
@@ -0,0 +1,50 @@
+package simpledb;
+
+/**
+ * Abstract class for operators that work a batch of rows at a time.
+ * Subclasses implement <code>fetchNextBatch</code>; the tuple at a time
+ * methods of {@link Operator} are served from those batches, so such an
+ * operator also works under a parent that only uses next().
+ * <p>
+ * Subclasses that override <code>rewind</code> or <code>close</code>
+ * should call the method of this class as well.
+ */
+public abstract class BatchOperator extends Operator implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    // the batch next() is returning rows of, and the next of its rows
+    private transient TupleBatch current;
+    private transient int pos;
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        return fetchNextBatch();
+    }
+
+    /**
+     * Returns the next batch of rows, holding at least one selected row, or
+     * null if there are no more. Operator uses this method to implement
+     * both <code>nextBatch</code> and <code>next</code>.
+     */
+    protected abstract TupleBatch fetchNextBatch() throws DbException,
+            TransactionAbortedException;
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (current == null || pos == current.size()) {
+            current = fetchNextBatch();
+            pos = 0;
+            if (current == null)
+                return null;
+        }
+        return current.getTuple(current.getSelection()[pos++]);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        current = null;
+    }
+
+    public void close() {
+        current = null;
+        super.close();
+    }
+}
@@ -3,7 +3,14 @@ package simpledb;
 import java.io.*;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -13,6 +20,21 @@ import java.util.ArrayList;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Pages read by sequential scans through {@link #getScanPage} are kept on a
+ * small ring of their own and are the first to be evicted, so a scan of a
+ * table larger than the pool cannot flush out the rest of the cache.
+ * Scans may also stage the pages they are about to read ahead of time
+ * through {@link #prefetchPage}; such pages stay on the scan ring until a
+ * regular {@link #getPage} asks for them.
+ * <p>
+ * A miss reserves a frame under the pool's monitor, but reads the page
+ * without it, so misses of different transactions overlap; transactions
+ * missing on the same page share a single read.
+ * <p>
+ * Dirty pages are group-flushed by a {@link PageCleaner}, which sorts the pages
+ * of concurrent flushes by file position and writes adjacent pages
+ * together.
  * 
  * @Threadsafe, all fields are final
  */
@@ -26,18 +48,85 @@ public class BufferPool {
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+
+    /** Upper bound on the number of frames sequential scans may hold. */
+    public static final int SCAN_RING_PAGES = 16;
+
+    /** Upper bound on the number of pages a scan stages ahead of itself. */
+    public static final int PREFETCH_PAGES = 8;
+
+    /** Writes dirty pages for every pool, so concurrent flushes share I/O. */
+    private static final PageCleaner cleaner = new PageCleaner();
+
     public ConcurrentHashMap<PageId,Page> buffer;
     public int num;
+    private final EvictionPolicy policy;
+    private final LockManager lockManager;
+    // pages loaded by scans and not referenced since, oldest first
+    private final Set<PageId> scanPages;
+    private final ArrayDeque<PageId> scanOrder;
+    // scan pages staged by prefetchPage that no scan has read yet
+    private final Set<PageId> prefetched;
+    // heap pages written straight to disk by bulk appends, per transaction
+    private final ConcurrentHashMap<TransactionId,List<HeapPageId>> appended;
+    private final int scanRing;
+    // reads of pages that missed, in progress without the monitor
+    private final ConcurrentHashMap<PageId,PendingRead> reading;
+    // frames set aside for those reads; guarded by this
+    private int reserved;
+
+    /** A read of a page that missed in the cache. */
+    private static class PendingRead {
+    	final CountDownLatch done = new CountDownLatch(1);
+    	// set if the page was discarded during the read; guarded by the pool
+    	boolean stale = false;
+
+    	/** Wait for the read to end, successfully or not. */
+    	void await() {
+    		boolean interrupted = false;
+    		while (true) {
+    			try {
+    				done.await();
+    				break;
+    			} catch (InterruptedException e) {
+    				interrupted = true;
+    			}
+    		}
+    		if (interrupted)
+    			Thread.currentThread().interrupt();
+    	}
+    }
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, using CLOCK
+     * replacement.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new ClockEvictionPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and picks
+     * eviction victims with the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement policy to use
+     */
+    public BufferPool(int numPages, EvictionPolicy policy) {
         // some code goes here
     	this.buffer = new ConcurrentHashMap<PageId,Page>(numPages);
     	this.num = numPages;
+    	this.policy = policy;
+    	this.lockManager = new LockManager();
+    	this.scanPages = Collections.newSetFromMap(new ConcurrentHashMap<PageId,Boolean>());
+    	this.scanOrder = new ArrayDeque<PageId>();
+    	this.prefetched = Collections.newSetFromMap(new ConcurrentHashMap<PageId,Boolean>());
+    	this.appended = new ConcurrentHashMap<TransactionId,List<HeapPageId>>();
+    	this.scanRing = Math.max(1, Math.min(SCAN_RING_PAGES, numPages / 4));
+    	this.reading = new ConcurrentHashMap<PageId,PendingRead>();
+    	this.reserved = 0;
     }
     
     public static int getPageSize() {
@@ -72,18 +161,207 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-    	if (buffer.containsKey(pid)) {
-    		return this.buffer.get(pid);
-    	}else {
-    		if (this.buffer.size() >= this.num) {
-    			evictPage();
+    	lockManager.acquire(tid, pid, perm);
+    	Page page = buffer.get(pid);
+    	if (page != null) {
+    		touchPage(pid);
+    		return page;
+    	}
+    	return loadPage(pid, false, false);
+    }
+
+    /**
+     * Retrieve the specified page on behalf of a sequential scan. Behaves
+     * like {@link #getPage}, except that a page read from disk here is
+     * treated as cold: it is evicted before any other page, and once scans
+     * hold SCAN_RING_PAGES frames (or a quarter of the pool) they recycle
+     * their own frames instead of taking new ones. A scan page that is
+     * requested again is promoted to a normal page.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public Page getScanPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+    	lockManager.acquire(tid, pid, perm);
+    	Page page = buffer.get(pid);
+    	if (page != null) {
+    		// the first scan to read a prefetched page leaves it cold
+    		if (prefetched.isEmpty() || !prefetched.remove(pid))
+    			touchPage(pid);
+    		return page;
+    	}
+    	return loadPage(pid, true, false);
+    }
+
+    /**
+     * Stage a page that a sequential scan is about to read. No lock is
+     * taken: the page is read as it is on disk, which under NO STEAL is its
+     * last committed state, unless it is already cached. The page joins the
+     * scan ring, so it only takes a frame from another scan page or from a
+     * clean page the replacement policy gives up, and it is not promoted by
+     * the scan that eventually reads it. The read never holds up other
+     * users of the pool: it runs without the monitor, and gives up rather
+     * than wait for a frame or for somebody else's read of the same page.
+     *
+     * @param pid the ID of the page to stage
+     * @return the cached page, or null if it could not be staged now
+     */
+    public Page prefetchPage(PageId pid) {
+    	try {
+    		return loadPage(pid, true, true);
+    	} catch (DbException e) {
+    		return null;
+    	}
+    }
+
+    /**
+     * @return how many pages a scan should stage ahead of itself; 0 if the
+     *   scan ring is too small for read-ahead to pay off
+     */
+    public int getPrefetchDepth() {
+    	return Math.min(PREFETCH_PAGES, scanRing / 2);
+    }
+
+    /** Record a cache hit on pid. */
+    private void touchPage(PageId pid) {
+    	if (!scanPages.isEmpty())
+    		scanPages.remove(pid);
+    	if (!prefetched.isEmpty())
+    		prefetched.remove(pid);
+    	policy.pageAccessed(pid);
+    }
+
+    /**
+     * Read a page that missed in the cache. Only reserving a frame and
+     * installing the page take the monitor; the disk read itself does not.
+     *
+     * @param scan true if the page is read by a sequential scan
+     * @param prefetch true to stage the page for a scan: the page is not
+     *   touched if cached, and null is returned instead of waiting
+     */
+    private Page loadPage(PageId pid, boolean scan, boolean prefetch) throws DbException {
+    	while (true) {
+    		Page page = buffer.get(pid);
+    		if (page != null) {
+    			if (!prefetch)
+    				touchPage(pid);
+    			return page;
+    		}
+    		PendingRead read = new PendingRead();
+    		PendingRead other = reading.putIfAbsent(pid, read);
+    		if (other != null) {
+    			if (prefetch)
+    				return null;
+    			// the page is cached once the other read is done, unless that
+    			// read failed or the page was evicted again already
+    			other.await();
+    			continue;
+    		}
+    		try {
+    			reserveFrame(scan, prefetch);
+    			Page fetch = null;
+    			try {
+    				fetch = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    			} finally {
+    				if (fetch == null)
+    					releaseFrame();
+    			}
+    			page = installPage(fetch, scan, prefetch, read);
+    		} finally {
+    			reading.remove(pid, read);
+    			read.done.countDown();
     		}
-    		Page fetch = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-    		this.buffer.put(pid, fetch);
-    		return fetch;
+    		if (page != null || prefetch)
+    			return page;
+    		// discarded while we read it, so the copy may be out of date
     	}
     }
 
+    /**
+     * Set aside a frame for a page about to be read, evicting pages until
+     * there is room.
+     */
+    private synchronized void reserveFrame(boolean scan, boolean prefetch) throws DbException {
+    	while (this.buffer.size() + reserved >= this.num) {
+    		// scans may grow their ring up to scanRing frames; everybody else
+    		// takes the oldest scan page before bothering the policy
+    		if ((!scan || scanPages.size() >= scanRing) && evictScanPage())
+    			continue;
+    		if (evictPage())
+    			continue;
+    		if (reserved == 0 || prefetch)
+    			throw new DbException("All pages in the buffer pool are dirty");
+    		// the remaining frames belong to reads in progress
+    		try {
+    			wait();
+    		} catch (InterruptedException e) {
+    			throw new DbException("interrupted while waiting for a free frame");
+    		}
+    	}
+    	reserved++;
+    }
+
+    /** Give back a frame reserved by reserveFrame. */
+    private synchronized void releaseFrame() {
+    	reserved--;
+    	notifyAll();
+    }
+
+    /**
+     * Put a page read from disk into its reserved frame, unless a newer
+     * version got cached in the meantime.
+     *
+     * @return the cached page, or null if the page was discarded during the read
+     */
+    private synchronized Page installPage(Page fetch, boolean scan, boolean prefetch,
+    		PendingRead read) {
+    	releaseFrame();
+    	if (read.stale)
+    		return null;
+    	PageId pid = fetch.getId();
+    	Page cached = buffer.get(pid);
+    	if (cached != null)
+    		return cached;
+    	cachePage(fetch);
+    	if (scan) {
+    		scanPages.add(pid);
+    		scanOrder.addLast(pid);
+    		if (scanOrder.size() > 2 * num)
+    			compactScanOrder();
+    	}
+    	if (prefetch)
+    		prefetched.add(pid);
+    	return fetch;
+    }
+
+    /** Drop ids of promoted or evicted pages from scanOrder. */
+    private void compactScanOrder() {
+    	ArrayDeque<PageId> live = new ArrayDeque<PageId>(scanPages.size());
+    	Set<PageId> seen = new HashSet<PageId>();
+    	// walk backwards so a page scanned twice keeps its latest position
+    	Iterator<PageId> it = scanOrder.descendingIterator();
+    	while (it.hasNext()) {
+    		PageId pid = it.next();
+    		if (scanPages.contains(pid) && seen.add(pid))
+    			live.addFirst(pid);
+    	}
+    	scanOrder.clear();
+    	scanOrder.addAll(live);
+    }
+
+    /**
+     * Put a page into the cache, replacing any older version of it, and let
+     * the replacement policy know about it.
+     */
+    private void cachePage(Page page) {
+    	if (buffer.put(page.getId(), page) == null)
+    		policy.pageAdded(page.getId());
+    	else
+    		touchPage(page.getId());
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -96,6 +374,7 @@ public class BufferPool {
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+    	lockManager.release(tid, pid);
     }
 
     /**
@@ -106,13 +385,38 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+    	transactionComplete(tid, true);
+    }
+
+    /**
+     * Lock pages that tid is about to write directly to the end of a heap
+     * file, bypassing the pool. The pages are locked exclusively until tid
+     * completes; if tid aborts, they are overwritten with empty pages. The
+     * appender must log the pages before writing them.
+     *
+     * @param tid the transaction appending the pages
+     * @param pids the new pages, which must not exist on disk yet
+     */
+    public void lockAppendedPages(TransactionId tid, List<HeapPageId> pids)
+        throws TransactionAbortedException {
+    	List<HeapPageId> mine = appended.get(tid);
+    	if (mine == null) {
+    		List<HeapPageId> fresh = Collections.synchronizedList(new ArrayList<HeapPageId>());
+    		mine = appended.putIfAbsent(tid, fresh);
+    		if (mine == null)
+    			mine = fresh;
+    	}
+    	for (HeapPageId pid : pids) {
+    		lockManager.acquire(tid, pid, Permissions.READ_WRITE);
+    		mine.add(pid);
+    	}
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
@@ -126,6 +430,42 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+    	List<HeapPageId> bulk = appended.remove(tid);
+    	try {
+    		if (commit) {
+    			flushPages(tid);
+    		} else {
+    			restorePages(tid);
+    			if (bulk != null)
+    				wipeAppendedPages(bulk);
+    		}
+    	} finally {
+    		lockManager.releaseAll(tid);
+    	}
+    }
+
+    /**
+     * Throw away every cached page dirtied by tid. Since dirty pages are
+     * never evicted, the copies on disk are exactly the state before tid
+     * touched them and are read back on the next access.
+     */
+    private synchronized void restorePages(TransactionId tid) {
+    	for (Page page : buffer.values()) {
+    		if (tid.equals(page.isDirty()))
+    			discardPage(page.getId());
+    	}
+    }
+
+    /**
+     * Undo bulk appends by overwriting the appended pages with empty ones.
+     * The pages stay in the file and are reused by later inserts.
+     */
+    private void wipeAppendedPages(List<HeapPageId> pids) throws IOException {
+    	for (HeapPageId pid : pids) {
+    		discardPage(pid);
+    		DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    		file.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+    	}
     }
 
     /**
@@ -153,7 +493,7 @@ public class BufferPool {
     	for (Page page : modifiedPages)
     	{
     		page.markDirty(true, tid);
-    		buffer.put(page.getId(), page);
+    		cachePage(page);
     	}
     }
 
@@ -180,7 +520,7 @@ public class BufferPool {
     	for (Page page : modifiedPages)
     	{
     		page.markDirty(true, tid);
-    		buffer.put(page.getId(), page);
+    		cachePage(page);
     	}
     }
 
@@ -192,8 +532,14 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-    	for (PageId pid : buffer.keySet())
-    		flushPage(pid);
+    	ArrayList<Page> dirty = new ArrayList<Page>();
+    	for (Page page : buffer.values()) {
+    		if (page.isDirty() != null)
+    			dirty.add(page);
+    	}
+    	cleaner.write(dirty);
+    	for (Page page : dirty)
+    		page.markDirty(false, page.isDirty());
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -207,53 +553,82 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-    	buffer.remove(pid);
-    }
-
-    /**
-     * Flushes a certain page to disk
-     * @param pid an ID indicating the page to flush
-     */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        // some code goes here
-        // not necessary for lab1
-    	Page pageToFlush = buffer.get(pid);
-    	TransactionId dirtyTransactionId = pageToFlush.isDirty();
-    	if (dirtyTransactionId != null){
-    		DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-    		dbFile.writePage(pageToFlush);
-    		pageToFlush.markDirty(false, dirtyTransactionId);
-    	}
+    	scanPages.remove(pid);
+    	prefetched.remove(pid);
+    	PendingRead read = reading.get(pid);
+    	if (read != null)
+    		read.stale = true;
+    	if (buffer.remove(pid) != null)
+    		policy.pageRemoved(pid);
     }
 
     /** Write all pages of the specified transaction to disk.
+     * Not synchronized: the pages are locked by tid, and waiting for the
+     * write outside the pool's monitor lets the cleaner combine the pages
+     * of transactions that commit at the same time.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+    	ArrayList<Page> dirty = new ArrayList<Page>();
+    	for (Page page : buffer.values()) {
+    		if (tid.equals(page.isDirty()))
+    			dirty.add(page);
+    	}
+    	cleaner.write(dirty);
+    	for (Page page : dirty) {
+    		page.markDirty(false, tid);
+    		page.setBeforeImage();
+    	}
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Only clean pages are evicted (NO STEAL), so uncommitted changes never
+     * reach disk and an abort only has to drop the transaction's pages.
+     * @return false if every page in the pool is dirty
      */
-    private synchronized void evictPage() throws DbException {
+    private synchronized boolean evictPage() {
         // some code goes here
         // not necessary for lab1
-      	boolean evicted = false;
-      	// Loop through all keys in buffer
-    	for (PageId pid : buffer.keySet()){
-    		try {
-        		flushPage(pid);
-        		buffer.remove(pid);
-        		evicted = true;
-    		}catch (IOException e){
-    			throw new DbException("Unable flush page when evict.");
+    	PageId victim = policy.chooseVictim(new EvictionPolicy.Candidates() {
+    		public boolean isEvictable(PageId pid) {
+    			Page page = buffer.get(pid);
+    			return page != null && page.isDirty() == null;
     		}
-    	}
+    	});
     	// Check is there is page to be evicted
-    	if (!evicted)
-    		throw new DbException("No evictable page");
+    	if (victim == null)
+    		return false;
+    	evict(victim);
+    	return true;
+    }
+
+    /**
+     * Evicts the oldest page loaded by a sequential scan that has not been
+     * referenced since.
+     * @return false if there was no such page
+     */
+    private synchronized boolean evictScanPage() {
+    	while (!scanOrder.isEmpty()) {
+    		PageId pid = scanOrder.pollFirst();
+    		if (!scanPages.remove(pid))
+    			continue;
+    		Page page = buffer.get(pid);
+    		if (page == null || page.isDirty() != null)
+    			continue;
+    		evict(pid);
+    		return true;
+    	}
+    	return false;
+    }
+
+    /** Drop the clean page pid from the pool. */
+    private synchronized void evict(PageId pid) {
+    	scanPages.remove(pid);
+    	prefetched.remove(pid);
+    	buffer.remove(pid);
+    	policy.pageRemoved(pid);
     }
 
 }
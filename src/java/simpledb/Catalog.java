@@ -45,10 +45,16 @@ public class Catalog {
      */
     public void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
-    	this.tables.put(name, file);
+    	DbFile old = this.tables.put(name, file);
     	this.pks.put(file.getId(), pkeyField);
     	this.names.put(file.getId(), name);
-    	
+    	// a different file under the same name replaces the old table
+    	if (old != null && old.getId() != file.getId()
+    			&& name.equals(this.names.get(old.getId()))) {
+    		this.names.remove(old.getId());
+    		this.pks.remove(old.getId());
+    		old.close();
+    	}
     }
 
     public void addTable(DbFile file, String name) {
@@ -127,9 +133,26 @@ public class Catalog {
         return this.names.get(id);
     }
     
+    /**
+     * Remove the table with the given name from the catalog and close its
+     * file. Does nothing if there is no such table.
+     */
+    public void removeTable(String name) {
+    	DbFile file = this.tables.remove(name);
+    	if (file == null)
+    		return;
+    	if (name.equals(this.names.get(file.getId()))) {
+    		this.names.remove(file.getId());
+    		this.pks.remove(file.getId());
+    	}
+    	file.close();
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+    	for (DbFile file : this.tables.values())
+    		file.close();
     	this.tables.clear();
     	this.pks.clear();
     	this.names.clear();
@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit on a circular list
+ * with a reference bit each; a hit only sets the bit, so the BufferPool hit
+ * path never takes a lock. When a victim is needed the hand sweeps the
+ * circle, clearing reference bits, and stops at the first evictable page
+ * whose bit was already clear.
+ *
+ * @Threadsafe
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    /** One slot on the clock. */
+    private static class Frame {
+        final PageId pid;
+        volatile boolean referenced = true;
+        volatile boolean resident = true;
+
+        Frame(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, Frame> frames;
+    private final ArrayList<Frame> ring;
+    private int hand;
+    private int dead;
+
+    /**
+     * Creates an empty clock.
+     *
+     * @param numPages the expected number of resident pages
+     */
+    public ClockEvictionPolicy(int numPages) {
+        this.frames = new ConcurrentHashMap<PageId, Frame>(numPages);
+        this.ring = new ArrayList<Frame>(numPages);
+        this.hand = 0;
+        this.dead = 0;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        Frame old = frames.get(pid);
+        if (old != null) {
+            old.referenced = true;
+            return;
+        }
+        Frame frame = new Frame(pid);
+        frames.put(pid, frame);
+        // new pages go just behind the hand so they get a full turn
+        ring.add(hand, frame);
+        hand = (hand + 1) % ring.size();
+    }
+
+    public void pageAccessed(PageId pid) {
+        Frame frame = frames.get(pid);
+        if (frame != null)
+            frame.referenced = true;
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Frame frame = frames.remove(pid);
+        if (frame == null)
+            return;
+        frame.resident = false;
+        // discarded pages are normally dropped by the sweep, but compact
+        // here too so a pool that never fills cannot grow the ring forever
+        if (++dead > ring.size() / 2) {
+            ArrayList<Frame> live = new ArrayList<Frame>(frames.size());
+            for (Frame f : ring) {
+                if (f.resident)
+                    live.add(f);
+            }
+            ring.clear();
+            ring.addAll(live);
+            hand = 0;
+            dead = 0;
+        }
+    }
+
+    public synchronized PageId chooseVictim(Candidates candidates) {
+        // two full turns: the first may only clear reference bits
+        int steps = 2 * ring.size() + 1;
+        while (steps-- > 0 && !ring.isEmpty()) {
+            if (hand >= ring.size())
+                hand = 0;
+            Frame frame = ring.get(hand);
+            if (!frame.resident) {
+                // lazily drop slots of pages that already left the pool
+                ring.remove(hand);
+                dead--;
+                continue;
+            }
+            if (frame.referenced) {
+                frame.referenced = false;
+            } else if (candidates.isEvictable(frame.pid)) {
+                hand = (hand + 1) % ring.size();
+                return frame.pid;
+            }
+            hand = (hand + 1) % ring.size();
+        }
+        return null;
+    }
+}
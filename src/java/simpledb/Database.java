@@ -75,6 +75,8 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        // release the files of the old catalog's tables
+        _instance.get()._catalog.clear();
         _instance.set(new Database());
     }
 
@@ -28,6 +28,19 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push several pages to disk at once. Files that know where their pages
+     * live should override this to combine writes of adjacent pages; by
+     * default each page is written on its own.
+     *
+     * @param pages the pages to write, sorted by page number
+     * @throws IOException if a write fails
+     */
+    public default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages)
+            writePage(p);
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -88,4 +101,12 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Release what the file keeps open, such as its file channels. Called
+     * by the Catalog when the table leaves it. The file may still be used
+     * afterwards; whatever it needs is opened again on demand.
+     */
+    public default void close() {
+    }
 }
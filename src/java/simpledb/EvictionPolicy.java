@@ -0,0 +1,56 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which page the BufferPool gives up when it runs out
+ * of frames. The BufferPool tells the policy about every page it caches,
+ * touches and drops, and asks it for a single victim when a new page needs
+ * room.
+ *
+ * @see BufferPool
+ * @see ClockEvictionPolicy
+ * @see LruKEvictionPolicy
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Callback used by the BufferPool to veto victims, for example pages
+     * that are dirty or that somebody still needs in memory.
+     */
+    public interface Candidates {
+        /** @return true if pid may be evicted right now */
+        public boolean isEvictable(PageId pid);
+    }
+
+    /**
+     * Called when a page is brought into the buffer pool.
+     *
+     * @param pid the id of the page that was added
+     */
+    public void pageAdded(PageId pid);
+
+    /**
+     * Called every time a cached page is requested again. This is on the hit
+     * path of BufferPool.getPage, so implementations should keep it cheap.
+     *
+     * @param pid the id of the page that was accessed
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page leaves the buffer pool, whether it was evicted or
+     * discarded.
+     *
+     * @param pid the id of the page that was removed
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Pick the page that should be evicted next. The policy does not remove
+     * the page itself; the BufferPool calls {@link #pageRemoved} once the
+     * page is really gone.
+     *
+     * @param candidates filter deciding which resident pages may be chosen
+     * @return the id of the victim, or null if no resident page is evictable
+     */
+    public PageId chooseVictim(Candidates candidates);
+}
@@ -0,0 +1,222 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * ExternalSort sorts a stream of tuples that need not fit in memory. Tuples
+ * are collected until the memory budget is reached, sorted, and written to
+ * a {@link SpillFile} of heap pages as a sorted run; once all tuples are in,
+ * the runs are merged as they are read back. Inputs within the budget never
+ * touch disk.
+ * <p>
+ * A merge holds one page of tuples per run, so it reads at most as many runs
+ * at once as there are pages in the budget; more runs than that are first
+ * merged in groups into longer runs. The sort is stable: tuples that compare
+ * equal come out in the order they were added.
+ * <p>
+ * Usage: {@link #add} every tuple, call {@link #finish}, then read the
+ * tuples in order with {@link #next}, and finally {@link #close} to remove
+ * the temporary files.
+ */
+public class ExternalSort {
+
+    /**
+     * A k-way merge of sorted runs through a loser tree. The leaves are the
+     * heads of the runs; each internal node holds the run that lost the
+     * match played there, and tree[0] the overall winner. Replacing the
+     * winner's head replays only the matches on its path to the root, one
+     * comparison per level.
+     */
+    private class Merge {
+        private final List<SpillFile> runs;
+        private final Tuple[] heads;
+        private final int[] tree;
+        private final int k;
+
+        Merge(List<SpillFile> runs) throws IOException {
+            this.runs = runs;
+            this.k = runs.size();
+            this.heads = new Tuple[k];
+            this.tree = new int[Math.max(1, k)];
+            for (int i = 0; i < k; i++)
+                heads[i] = runs.get(i).next();
+            tree[0] = k == 0 ? 0 : build(1);
+        }
+
+        /** @return the winner of the subtree at a node, after playing its matches */
+        private int build(int node) {
+            // nodes k to 2k - 1 are the leaves, one per run
+            if (node >= k)
+                return node - k;
+            int a = build(2 * node);
+            int b = build(2 * node + 1);
+            if (beats(a, b)) {
+                tree[node] = b;
+                return a;
+            }
+            tree[node] = a;
+            return b;
+        }
+
+        /** @return true if the head of run a comes before the head of run b */
+        private boolean beats(int a, int b) {
+            if (heads[a] == null)
+                return false;
+            if (heads[b] == null)
+                return true;
+            int c = cmp.compare(heads[a], heads[b]);
+            // ties go to the earlier run, which holds the earlier tuples
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        /** @return the smallest head of all runs, or null if they are all done */
+        Tuple next() throws IOException {
+            if (k == 0)
+                return null;
+            int winner = tree[0];
+            Tuple t = heads[winner];
+            if (t == null)
+                return null;
+            heads[winner] = runs.get(winner).next();
+            for (int node = (winner + k) / 2; node >= 1; node /= 2) {
+                if (beats(tree[node], winner)) {
+                    int loser = winner;
+                    winner = tree[node];
+                    tree[node] = loser;
+                }
+            }
+            tree[0] = winner;
+            return t;
+        }
+    }
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> cmp;
+    private final int budget;
+    private final int fanIn;
+    private ArrayList<Tuple> buffer;
+    private ArrayList<SpillFile> runs;
+    private int runsWritten;
+    private long size;
+    private boolean finished;
+
+    // read side, set up by finish()
+    private int bufferPos;
+    private Merge merge;
+
+    /**
+     * @param td the schema of the tuples to sort
+     * @param cmp the sort order
+     * @param budget the number of tuples to keep in memory at once
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> cmp, int budget) {
+        if (budget < 1)
+            throw new IllegalArgumentException("sort budget must be positive");
+        this.td = td;
+        this.cmp = cmp;
+        this.budget = budget;
+        this.fanIn = Math.max(2, budget / HeapPage.getNumSlots(td));
+        this.buffer = new ArrayList<Tuple>();
+        this.runs = new ArrayList<SpillFile>();
+        this.size = 0;
+    }
+
+    /** Add a tuple to the input. */
+    public void add(Tuple t) throws IOException {
+        if (finished)
+            throw new IllegalStateException("sort already finished");
+        t.materialize();
+        buffer.add(t);
+        size++;
+        if (buffer.size() >= budget)
+            spill();
+    }
+
+    /** @return the number of tuples added so far */
+    public long size() {
+        return size;
+    }
+
+    /** @return the number of runs written to disk, including merged ones */
+    public int numRuns() {
+        return runsWritten;
+    }
+
+    /** Stop taking input and prepare to return tuples in order. */
+    public void finish() throws IOException {
+        if (runs.isEmpty()) {
+            Collections.sort(buffer, cmp);
+        } else if (!buffer.isEmpty()) {
+            spill();
+        }
+        finished = true;
+        // merge groups of runs until one merge can read all that are left
+        while (runs.size() > fanIn) {
+            ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                List<SpillFile> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                SpillFile out = new SpillFile(td);
+                runsWritten++;
+                Merge m = new Merge(group);
+                Tuple t;
+                while ((t = m.next()) != null)
+                    out.add(t);
+                out.finish();
+                for (SpillFile f : group)
+                    f.delete();
+                merged.add(out);
+            }
+            runs = merged;
+        }
+        bufferPos = 0;
+        merge = new Merge(runs);
+    }
+
+    /** @return the next tuple in sort order, or null once all were returned */
+    public Tuple next() throws IOException {
+        if (!finished)
+            throw new IllegalStateException("sort not finished");
+        if (runs.isEmpty())
+            return bufferPos < buffer.size() ? buffer.get(bufferPos++) : null;
+        return merge.next();
+    }
+
+    /** Start returning the tuples in order again from the first one. */
+    public void rewind() throws IOException {
+        if (!finished)
+            throw new IllegalStateException("sort not finished");
+        bufferPos = 0;
+        for (SpillFile f : runs)
+            f.rewind();
+        merge = new Merge(runs);
+    }
+
+    /** Release memory and delete the temporary run files. */
+    public void close() {
+        for (SpillFile f : runs)
+            f.delete();
+        runs = new ArrayList<SpillFile>();
+        buffer = new ArrayList<Tuple>();
+        merge = null;
+    }
+
+    /** Sort the buffered tuples and write them out as a run. */
+    private void spill() throws IOException {
+        Collections.sort(buffer, cmp);
+        SpillFile f = new SpillFile(td);
+        runs.add(f);
+        runsWritten++;
+        for (Tuple t : buffer)
+            f.add(t);
+        f.finish();
+        buffer.clear();
+    }
+}
@@ -0,0 +1,47 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A DbIterator whose open fails with a given error. It stands in for a
+ * result that turns out to be wrong while it is computed, where the
+ * method computing it cannot throw a DbException itself.
+ */
+class FailedIterator implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+    private final TupleDesc td;
+    private final String message;
+
+    /**
+     * @param td the schema the result would have had
+     * @param message the message of the DbException thrown by open
+     */
+    FailedIterator(TupleDesc td, String message) {
+        this.td = td;
+        this.message = message;
+    }
+
+    public void open() throws DbException {
+        throw new DbException(message);
+    }
+
+    public boolean hasNext() {
+        return false;
+    }
+
+    public Tuple next() {
+        throw new NoSuchElementException();
+    }
+
+    public void rewind() throws DbException {
+        throw new DbException(message);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void close() {
+    }
+}
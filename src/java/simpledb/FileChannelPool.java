@@ -0,0 +1,198 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FileChannelPool keeps one long-lived FileChannel open per database file,
+ * so that DbFiles do not pay an open/close pair for every page they read or
+ * write. All access goes through positional reads and writes, which do not
+ * move a shared file pointer, so concurrent readers of the same file never
+ * serialize on a seek.
+ * <p>
+ * Channels are keyed by absolute path, so several DbFile objects backed by
+ * the same file share a channel. DbFiles close theirs when their table
+ * leaves the Catalog.
+ * <p>
+ * A FileChannel is closed for every user when a thread is interrupted in
+ * the middle of I/O on it, and transactions aborted while waiting for a
+ * lock keep their interrupt status. So the interrupt status is cleared for
+ * the duration of every read and write and restored afterwards, and an
+ * operation that finds its channel closed under it reopens it and tries
+ * again once.
+ *
+ * @Threadsafe
+ */
+public class FileChannelPool {
+
+    private static final ConcurrentHashMap<String, FileChannel> channels =
+        new ConcurrentHashMap<String, FileChannel>();
+
+    private FileChannelPool() {
+    }
+
+    /** An operation on a channel, that may be repeated. */
+    private interface ChannelOp<T> {
+        T run(FileChannel ch) throws IOException;
+    }
+
+    /**
+     * Run op on the channel of f with the interrupt status cleared,
+     * reopening the channel once if it gets closed during op.
+     */
+    private static <T> T withChannel(File f, ChannelOp<T> op) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return op.run(get(f));
+                } catch (ClosedChannelException e) {
+                    if (attempt > 0)
+                        throw e;
+                    // closed by close(), or by an interrupt of some thread
+                    if (Thread.interrupted())
+                        interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Return the open channel for f, opening it for reading and writing if
+     * this is the first request for f.
+     *
+     * @param f the file to access
+     * @return a channel on f
+     * @throws IOException if the file cannot be opened
+     */
+    public static FileChannel get(File f) throws IOException {
+        String key = f.getAbsolutePath();
+        FileChannel ch = channels.get(key);
+        if (ch != null && ch.isOpen())
+            return ch;
+        synchronized (channels) {
+            ch = channels.get(key);
+            if (ch == null || !ch.isOpen()) {
+                ch = new RandomAccessFile(f, "rw").getChannel();
+                channels.put(key, ch);
+            }
+            return ch;
+        }
+    }
+
+    /**
+     * Close the channel on f, if one is open. A later {@link #get} opens a
+     * new one.
+     */
+    public static void close(File f) {
+        FileChannel ch = channels.remove(f.getAbsolutePath());
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                // nothing useful to do about a failed close
+            }
+        }
+    }
+
+    /**
+     * Read from f at the given offset until buf is full or the end of the
+     * file is reached.
+     *
+     * @return the number of bytes read
+     */
+    public static int read(File f, final ByteBuffer buf, final long offset) throws IOException {
+        final int start = buf.position();
+        return withChannel(f, ch -> {
+            // a retry starts over
+            buf.position(start);
+            int total = 0;
+            while (buf.hasRemaining()) {
+                int n = ch.read(buf, offset + total);
+                if (n < 0)
+                    break;
+                total += n;
+            }
+            return total;
+        });
+    }
+
+    /**
+     * Write all of data to f at the given offset, growing the file if
+     * needed.
+     */
+    public static void write(File f, final byte[] data, final long offset) throws IOException {
+        withChannel(f, ch -> {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining())
+                ch.write(buf, offset + buf.position());
+            return null;
+        });
+    }
+
+    /** @return the current size of f */
+    public static long size(File f) throws IOException {
+        return withChannel(f, ch -> ch.size());
+    }
+
+    /**
+     * Map all of f read-only, up to 2GB.
+     * @return the mapping, or null if f is shorter than needed bytes
+     */
+    public static MappedByteBuffer map(File f, final long needed) throws IOException {
+        return withChannel(f, ch -> {
+            long size = ch.size();
+            if (size < needed)
+                return null;
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+        });
+    }
+
+    /**
+     * Write several blocks to f. Blocks must be given in increasing offset
+     * order; each run of blocks that are adjacent on disk goes out in a
+     * single gathering write.
+     *
+     * @param offsets the file offset of each block
+     * @param data the contents of each block
+     */
+    public static void writeAll(File f, final long[] offsets, final byte[][] data) throws IOException {
+        withChannel(f, ch -> {
+            writeAll(ch, offsets, data);
+            return null;
+        });
+    }
+
+    private static void writeAll(FileChannel ch, long[] offsets, byte[][] data) throws IOException {
+        int start = 0;
+        while (start < data.length) {
+            int end = start + 1;
+            while (end < data.length
+                    && offsets[end] == offsets[end - 1] + data[end - 1].length)
+                end++;
+            ByteBuffer[] bufs = new ByteBuffer[end - start];
+            long remaining = 0;
+            for (int i = start; i < end; i++) {
+                bufs[i - start] = ByteBuffer.wrap(data[i]);
+                remaining += data[i].length;
+            }
+            // gathering writes use the channel position, which positional
+            // reads and writes leave alone
+            synchronized (ch) {
+                ch.position(offsets[start]);
+                while (remaining > 0)
+                    remaining -= ch.write(bufs);
+            }
+            start = end;
+        }
+    }
+}
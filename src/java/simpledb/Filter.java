@@ -3,13 +3,15 @@ package simpledb;
 import java.util.*;
 
 /**
- * Filter is an operator that implements a relational select.
+ * Filter is an operator that implements a relational select. It reads its
+ * child a batch at a time and evaluates the predicate over whole batches.
  */
-public class Filter extends Operator {
+public class Filter extends BatchOperator {
 
     private static final long serialVersionUID = 1L;
     private Predicate p;
     private DbIterator child;
+    private BatchIterator input;
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -24,6 +26,7 @@ public class Filter extends Operator {
         // some code goes here
     	this.p = p;
     	this.child = child;
+    	this.input = BatchAdapter.wrap(child);
     }
 
     public Predicate getPredicate() {
@@ -51,24 +54,25 @@ public class Filter extends Operator {
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
+    	super.rewind();
     	child.rewind();
     }
 
     /**
-     * AbstractDbIterator.readNext implementation. Iterates over tuples from the
-     * child operator, applying the predicate to them and returning those that
-     * pass the predicate (i.e. for which the Predicate.filter() returns true.)
+     * BatchOperator.fetchNextBatch implementation. Reads batches from the
+     * child operator and narrows each to the rows that pass the predicate
+     * (i.e. for which the Predicate.filter() returns true.)
      * 
-     * @return The next tuple that passes the filter, or null if there are no
-     *         more tuples
-     * @see Predicate#filter
+     * @return The next batch with rows that pass the filter, or null if there
+     *         are no more tuples
+     * @see Predicate#filter(TupleBatch)
      */
-    protected Tuple fetchNext() throws NoSuchElementException,
+    protected TupleBatch fetchNextBatch() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        // some code goes here
-    	while(child.hasNext()) {
-    		Tuple t = child.next();
-    		if (p.filter(t)) return t;
+    	TupleBatch batch;
+    	while ((batch = input.nextBatch()) != null) {
+    		p.filter(batch);
+    		if (batch.size() > 0) return batch;
     	}
     	return null;
     }
@@ -83,6 +87,7 @@ public class Filter extends Operator {
     public void setChildren(DbIterator[] children) {
         // some code goes here
     	child = children[0];
+    	input = BatchAdapter.wrap(child);
     }
 
 }
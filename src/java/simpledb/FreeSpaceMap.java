@@ -0,0 +1,143 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile were found to be full,
+ * so that inserts can go straight to a page that may have room instead of
+ * looking at every page from the start of the file.
+ * <p>
+ * The map is only a hint. A page not known to be full is a candidate, and
+ * an insert still checks the page itself; a page is only marked full after
+ * an insert has seen its committed contents full, or when it is written
+ * full, and deletes mark their page as having room again. So a stale map
+ * can cost an extra page lookup but never puts a tuple on a full page.
+ * <p>
+ * The map is kept in a small file next to the heap file (the heap file's
+ * name with ".fsm" appended) and is saved when a batch of heap pages is
+ * written, if it changed. The saved map records the length and
+ * modification time of the heap file; if the heap file changed behind the
+ * map's back, the saved map is ignored and every page becomes a candidate
+ * again. The map of a heap file in the temporary directory is deleted when
+ * the JVM exits, like the temporary heap files themselves.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    private static final int HEADER_SIZE = 8 + 8 + 4;
+
+    private final File heap;
+    private final File file;
+    // pages known to be full; null until first used
+    private BitSet full;
+    // true if full changed since it was last saved
+    private boolean dirty;
+    // the heap file's length and modification time the saved map was stamped with
+    private long savedLength = -1, savedModified = -1;
+
+    /**
+     * Creates the free-space map for the given heap file. Nothing is read
+     * until the map is first used.
+     */
+    public FreeSpaceMap(File heap) {
+        this.heap = heap;
+        this.file = new File(heap.getPath() + ".fsm");
+        this.full = null;
+        this.dirty = false;
+    }
+
+    /** @return the file the map is saved in */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param from the first page to consider
+     * @return the first page at or after from that is not known to be full;
+     *   this may be past the end of the heap file
+     */
+    public synchronized int nextCandidate(int from) {
+        return load().nextClearBit(from);
+    }
+
+    /** Record that an insert found page pgNo full. */
+    public synchronized void markFull(int pgNo) {
+        BitSet bits = load();
+        if (!bits.get(pgNo)) {
+            bits.set(pgNo);
+            dirty = true;
+        }
+    }
+
+    /** Record that page pgNo has at least one free slot. */
+    public synchronized void markFree(int pgNo) {
+        BitSet bits = load();
+        if (bits.get(pgNo)) {
+            bits.clear(pgNo);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Write the map to disk, stamped with the current length and
+     * modification time of the heap file. Does nothing if neither the map
+     * nor the heap file changed since the map was loaded or last saved.
+     */
+    public synchronized void save() throws IOException {
+        if (full == null)
+            return;
+        long length = heap.length();
+        long modified = heap.lastModified();
+        if (!dirty && length == savedLength && modified == savedModified)
+            return;
+        if (!file.exists() && isTemporary())
+            file.deleteOnExit();
+        byte[] bits = full.toByteArray();
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + bits.length);
+        buf.putLong(length);
+        buf.putLong(modified);
+        buf.putInt(bits.length);
+        buf.put(bits);
+        FileChannelPool.write(file, buf.array(), 0);
+        dirty = false;
+        savedLength = length;
+        savedModified = modified;
+    }
+
+    /** @return true if the heap file lives in the temporary directory */
+    private boolean isTemporary() {
+        File dir = heap.getAbsoluteFile().getParentFile();
+        File tmp = new File(System.getProperty("java.io.tmpdir")).getAbsoluteFile();
+        return dir != null && dir.equals(tmp);
+    }
+
+    private BitSet load() {
+        if (full != null)
+            return full;
+        full = new BitSet();
+        if (!file.exists())
+            return full;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (FileChannelPool.read(file, header, 0) < HEADER_SIZE)
+                return full;
+            header.flip();
+            long length = header.getLong();
+            long modified = header.getLong();
+            if (length != heap.length() || modified != heap.lastModified())
+                return full;
+            savedLength = length;
+            savedModified = modified;
+            ByteBuffer bits = ByteBuffer.allocate(header.getInt());
+            if (FileChannelPool.read(file, bits, HEADER_SIZE) == bits.capacity())
+                full = BitSet.valueOf(bits.array());
+        } catch (IOException e) {
+            // an unreadable map is as good as no map
+        }
+        return full;
+    }
+}
@@ -0,0 +1,329 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Knows how to compute several aggregates at once, grouped by any number of
+ * fields, in a single pass over the tuples.
+ * <p>
+ * Groups are numbered in the order they were first seen. Their keys and
+ * aggregate state are kept in flat primitive arrays: 64-bit sums and int
+ * minimums and maximums, one entry per group and aggregate, and one row
+ * count per group, which is the COUNT of every aggregate of the group. When
+ * all group-by fields are ints, groups are found through an open-addressing
+ * hash table over the key values, without creating a key object per tuple.
+ * <p>
+ * As in {@link IntegerAggregator}, a SUM or COUNT that overflows its INT
+ * result makes the result iterator fail with a DbException on open, and
+ * AVG is the 64-bit sum divided by the count, truncated toward zero.
+ */
+public class GroupAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+    private static final int INITIAL_GROUPS = 16;
+
+    private final int[] gbfields;
+    private final int[] afields;
+    private final Op[] ops;
+    private final TupleDesc td;
+    private final boolean intKeyed;
+
+    private int numGroups;
+    private long[] counts;
+    // per group and aggregate, at group * afields.length + aggregate
+    private long[] sums;
+    private int[] mins;
+    private int[] maxs;
+    // group keys, at group * gbfields.length + field
+    private int[] intKeys;
+    private Field[] fieldKeys;
+    // int keys: open-addressing table of group number + 1, 0 for a free slot
+    private int[] table;
+    private final int[] probe;
+    // other keys: group number by key
+    private HashMap<List<Field>, Integer> fieldGroups;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple; empty
+     *            if there is no grouping
+     * @param gbfieldtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based index of the field of each aggregate
+     * @param afieldtypes
+     *            the type of the field of each aggregate
+     * @param ops
+     *            the operator of each aggregate
+     * @throws IllegalArgumentException if an aggregate is not supported on
+     *            its field's type
+     */
+    public GroupAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields,
+            Type[] afieldtypes, Op[] ops) {
+        this.gbfields = gbfields;
+        this.afields = afields;
+        this.ops = ops;
+        boolean ints = true;
+        Type[] types = new Type[gbfields.length + afields.length];
+        for (int j = 0; j < gbfields.length; j++) {
+            types[j] = gbfieldtypes[j];
+            ints &= gbfieldtypes[j] == Type.INT_TYPE;
+        }
+        for (int a = 0; a < afields.length; a++) {
+            if (ops[a] != Op.COUNT && (afieldtypes[a] != Type.INT_TYPE || (ops[a] != Op.MIN
+                    && ops[a] != Op.MAX && ops[a] != Op.SUM && ops[a] != Op.AVG))) {
+                throw new IllegalArgumentException("unsupported aggregate " + ops[a]
+                        + " over " + afieldtypes[a]);
+            }
+            types[gbfields.length + a] = Type.INT_TYPE;
+        }
+        this.td = new TupleDesc(types);
+        this.intKeyed = ints;
+
+        this.numGroups = 0;
+        this.counts = new long[INITIAL_GROUPS];
+        this.sums = new long[INITIAL_GROUPS * afields.length];
+        this.mins = new int[INITIAL_GROUPS * afields.length];
+        this.maxs = new int[INITIAL_GROUPS * afields.length];
+        this.probe = new int[gbfields.length];
+        if (ints) {
+            this.intKeys = new int[INITIAL_GROUPS * gbfields.length];
+            this.table = new int[INITIAL_GROUPS * 2];
+        } else {
+            this.fieldKeys = new Field[INITIAL_GROUPS * gbfields.length];
+            this.fieldGroups = new HashMap<List<Field>, Integer>();
+        }
+    }
+
+    /**
+     * Merge a new tuple into the aggregates of its group
+     *
+     * @param tup
+     *            the Tuple containing the aggregate and group-by fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        int g;
+        if (intKeyed) {
+            for (int j = 0; j < gbfields.length; j++)
+                probe[j] = ((IntField) tup.getField(gbfields[j])).getValue();
+            g = intGroup();
+        } else {
+            Field[] key = new Field[gbfields.length];
+            for (int j = 0; j < gbfields.length; j++)
+                key[j] = tup.getField(gbfields[j]);
+            g = fieldGroup(key);
+        }
+        merge(g, tup);
+    }
+
+    private void merge(int g, Tuple tup) {
+        counts[g]++;
+        int base = g * afields.length;
+        for (int a = 0; a < afields.length; a++) {
+            if (ops[a] != Op.COUNT)
+                add(base + a, ((IntField) tup.getField(afields[a])).getValue());
+        }
+    }
+
+    public boolean mergeIntoExistingGroup(Tuple tup) {
+        int g;
+        if (intKeyed) {
+            for (int j = 0; j < gbfields.length; j++)
+                probe[j] = ((IntField) tup.getField(gbfields[j])).getValue();
+            g = findIntGroup();
+        } else {
+            Field[] key = new Field[gbfields.length];
+            for (int j = 0; j < gbfields.length; j++)
+                key[j] = tup.getField(gbfields[j]);
+            Integer n = fieldGroups.get(Arrays.asList(key));
+            g = n == null ? -1 : n;
+        }
+        if (g < 0)
+            return false;
+        merge(g, tup);
+        return true;
+    }
+
+    public int numGroups() {
+        return numGroups;
+    }
+
+    /**
+     * Merge the selected rows of a batch. Group keys and aggregate values are
+     * read from the batch's int vectors, one aggregate at a time.
+     */
+    public void mergeBatch(TupleBatch batch) {
+        int n = batch.size();
+        if (!intKeyed || n == 0) {
+            Aggregator.super.mergeBatch(batch);
+            return;
+        }
+        int[] sel = batch.getSelection();
+        int[][] keys = new int[gbfields.length][];
+        for (int j = 0; j < gbfields.length; j++)
+            keys[j] = batch.getIntColumn(gbfields[j]);
+        int[] groups = new int[n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < keys.length; j++)
+                probe[j] = keys[j][sel[i]];
+            groups[i] = intGroup();
+            counts[groups[i]]++;
+        }
+        for (int a = 0; a < afields.length; a++) {
+            if (ops[a] == Op.COUNT)
+                continue;
+            int[] values = batch.getIntColumn(afields[a]);
+            for (int i = 0; i < n; i++)
+                add(groups[i] * afields.length + a, values[sel[i]]);
+        }
+    }
+
+    private void add(int slot, int value) {
+        sums[slot] += value;
+        if (value < mins[slot])
+            mins[slot] = value;
+        if (value > maxs[slot])
+            maxs[slot] = value;
+    }
+
+    /** @return the group of the int key in probe, or -1 if there is none */
+    private int findIntGroup() {
+        int mask = table.length - 1;
+        int h = hash(probe, 0) & mask;
+        int g;
+        while ((g = table[h] - 1) >= 0) {
+            if (sameKey(g * probe.length))
+                return g;
+            h = (h + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** @return the group of the int key in probe, created if it is new */
+    private int intGroup() {
+        int k = probe.length;
+        int mask = table.length - 1;
+        int h = hash(probe, 0) & mask;
+        int g;
+        while ((g = table[h] - 1) >= 0) {
+            if (sameKey(g * k))
+                return g;
+            h = (h + 1) & mask;
+        }
+        g = newGroup();
+        System.arraycopy(probe, 0, intKeys, g * k, k);
+        table[h] = g + 1;
+        // keep the table at most half full
+        if (numGroups * 2 > table.length)
+            rehash(table.length * 2);
+        return g;
+    }
+
+    private boolean sameKey(int at) {
+        for (int j = 0; j < probe.length; j++) {
+            if (intKeys[at + j] != probe[j])
+                return false;
+        }
+        return true;
+    }
+
+    private int hash(int[] key, int at) {
+        int h = 0;
+        for (int j = 0; j < probe.length; j++)
+            h = (h + key[at + j]) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void rehash(int size) {
+        table = new int[size];
+        int mask = size - 1;
+        for (int g = 0; g < numGroups; g++) {
+            int h = hash(intKeys, g * probe.length) & mask;
+            while (table[h] != 0)
+                h = (h + 1) & mask;
+            table[h] = g + 1;
+        }
+    }
+
+    /** @return the group of a key that is not all ints, created if it is new */
+    private int fieldGroup(Field[] key) {
+        List<Field> k = Arrays.asList(key);
+        Integer g = fieldGroups.get(k);
+        if (g != null)
+            return g;
+        int n = newGroup();
+        System.arraycopy(key, 0, fieldKeys, n * key.length, key.length);
+        fieldGroups.put(k, n);
+        return n;
+    }
+
+    /** @return the number of a new, empty group */
+    private int newGroup() {
+        if (numGroups == counts.length) {
+            int n = counts.length * 2;
+            counts = Arrays.copyOf(counts, n);
+            sums = Arrays.copyOf(sums, n * afields.length);
+            mins = Arrays.copyOf(mins, n * afields.length);
+            maxs = Arrays.copyOf(maxs, n * afields.length);
+            if (intKeys != null)
+                intKeys = Arrays.copyOf(intKeys, n * gbfields.length);
+            if (fieldKeys != null)
+                fieldKeys = Arrays.copyOf(fieldKeys, n * gbfields.length);
+        }
+        int g = numGroups++;
+        counts[g] = 0;
+        for (int slot = g * afields.length; slot < (g + 1) * afields.length; slot++) {
+            sums[slot] = 0;
+            mins[slot] = Integer.MAX_VALUE;
+            maxs[slot] = Integer.MIN_VALUE;
+        }
+        return g;
+    }
+
+    /** @throws ArithmeticException if a SUM or COUNT does not fit in an int */
+    private int value(int g, int a) {
+        int slot = g * afields.length + a;
+        switch (ops[a]) {
+        case MIN:
+            return mins[slot];
+        case MAX:
+            return maxs[slot];
+        case SUM:
+            return Math.toIntExact(sums[slot]);
+        case AVG:
+            return (int) (sums[slot] / counts[g]);
+        case COUNT:
+            return Math.toIntExact(counts[g]);
+        default:
+            throw new IllegalStateException("impossible to reach here");
+        }
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results.
+     *
+     * @return a DbIterator whose tuples hold the group-by fields of a group
+     *         followed by the value of each aggregate; if a value
+     *         overflows an int, the iterator throws a DbException when opened
+     */
+    public DbIterator iterator() {
+        ArrayList<Tuple> tuplelist = new ArrayList<Tuple>(numGroups);
+        int k = gbfields.length;
+        for (int g = 0; g < numGroups; g++) {
+            Tuple t = new Tuple(td);
+            for (int j = 0; j < k; j++)
+                t.setField(j, intKeyed ? new IntField(intKeys[g * k + j]) : fieldKeys[g * k + j]);
+            for (int a = 0; a < afields.length; a++) {
+                try {
+                    t.setField(k + a, new IntField(value(g, a)));
+                } catch (ArithmeticException e) {
+                    return new FailedIterator(td, ops[a] + " overflows the INT result");
+                }
+            }
+            tuplelist.add(t);
+        }
+        return new TupleIterator(td, tuplelist);
+    }
+}
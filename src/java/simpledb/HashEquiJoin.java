@@ -1,16 +1,44 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * This is a hybrid hash join. The tuples of the build side, child1 unless
+ * the join is told to build on child2, are hashed on the join field into
+ * partitions, each with its own in-memory {@link JoinHashTable}. When more
+ * than {@link #getMaxBuildTuples} tuples are held, the largest partition is
+ * written to a temporary file, along with any later tuples of it. Tuples of
+ * the other child probe the partitions still in memory and are written to
+ * a file when their partition was spilled. Each pair of spilled files is
+ * then joined the same way, partitioning again if it is still too large.
+ * Either way, output tuples are the fields of child1 followed by those of
+ * child2.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of build tuples held in memory */
+    public static final int DEFAULT_MAX_BUILD_TUPLES = 1 << 20;
+    // partitions per pass, and passes before spilling is given up
+    private static final int FANOUT = 16;
+    private static final int MAX_LEVEL = 8;
+
     private JoinPredicate p;
     private DbIterator child1,child2;
-    private HashMap<Field, ArrayList<Tuple>> map = new HashMap<Field, ArrayList<Tuple>>();
+    private final boolean buildOnChild1;
+    private int maxBuildTuples = DEFAULT_MAX_BUILD_TUPLES;
+
+    private transient TupleDesc td;
+    // the pass whose tables are probed, and the file probing them, or null
+    // while child2 is
+    private transient Pass pass;
+    private transient SpillFile probeFile;
+    private transient ArrayDeque<Partition> pending;
+    private transient boolean spilled;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -25,9 +53,29 @@ public class HashEquiJoin extends Operator {
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
         // some code goes here
+    	this(p, child1, child2, true);
+    }
+
+    /**
+     * Constructor that chooses the side the hash tables are built on, which
+     * should be the smaller one.
+     * 
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param buildOnChild1
+     *            true to build the hash tables on child1 and probe them
+     *            with child2, false for the other way around
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            boolean buildOnChild1) {
     	this.p = p;
     	this.child1 = child1;
     	this.child2 = child2;
+    	this.buildOnChild1 = buildOnChild1;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -35,6 +83,41 @@ public class HashEquiJoin extends Operator {
         return p;
     }
 
+    /** @return true if the hash tables are built on child1 */
+    public boolean buildsOnChild1() {
+        return buildOnChild1;
+    }
+
+    private DbIterator buildChild() {
+        return buildOnChild1 ? child1 : child2;
+    }
+
+    private DbIterator probeChild() {
+        return buildOnChild1 ? child2 : child1;
+    }
+
+    private int buildField() {
+        return buildOnChild1 ? p.getField1() : p.getField2();
+    }
+
+    private int probeField() {
+        return buildOnChild1 ? p.getField2() : p.getField1();
+    }
+
+    /**
+     * Sets the number of tuples of the build side held in memory; past that,
+     * partitions of both children are joined through temporary files.
+     */
+    public void setMaxBuildTuples(int maxBuildTuples) {
+        if (maxBuildTuples < 1)
+            throw new IllegalArgumentException("maxBuildTuples must be positive");
+        this.maxBuildTuples = maxBuildTuples;
+    }
+
+    public int getMaxBuildTuples() {
+        return maxBuildTuples;
+    }
+
     public TupleDesc getTupleDesc() {
         // some code goes here
         return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
@@ -55,20 +138,34 @@ public class HashEquiJoin extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
-
-    	map.clear();
     	super.open();
     	child1.open();
     	child2.open();
-    	while(child1.hasNext()) {
-    		Tuple tuple = child1.next();
-    		if(!map.containsKey(tuple.getField(p.getField1()))) map.put(tuple.getField(p.getField1()), new ArrayList<Tuple>());
-    		map.get(tuple.getField(p.getField1())).add(tuple);
-    	}
+    	td = getTupleDesc();
+    	build();
+    }
+
+    /** Hashes all of the build side into a fresh first pass. */
+    private void build() throws DbException, TransactionAbortedException {
+    	dropSpills();
+    	pending = new ArrayDeque<Partition>();
+    	spilled = false;
+    	pass = new Pass(0);
+    	DbIterator child = buildChild();
+    	while (child.hasNext())
+    		pass.build(child.next());
+    	pass.finishBuild();
+    	spilled = pass.spilled();
+    	probe = null;
+    	matches = null;
     }
 
     public void close() {
         // some code goes here
+    	dropSpills();
+    	pass = null;
+    	probe = null;
+    	matches = null;
     	child1.close();
     	child2.close();
     	super.close();
@@ -76,12 +173,34 @@ public class HashEquiJoin extends Operator {
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-    	child1.rewind();
-    	child2.rewind();
+    	probeChild().rewind();
+    	if (spilled) {
+    		// the first pass no longer holds every partition in memory
+    		buildChild().rewind();
+    		build();
+    	} else {
+    		probe = null;
+    		matches = null;
+    	}
+    }
+
+    private void dropSpills() {
+    	if (probeFile != null)
+    		probeFile.delete();
+    	probeFile = null;
+    	if (pass != null)
+    		pass.delete();
+    	if (pending != null) {
+    		for (Partition part : pending)
+    			part.delete();
+    		pending.clear();
+    	}
     }
 
-    transient Iterator<Tuple> listIt = null;
-    private Tuple t2=null;
+    // the probe tuple being joined, and the table and row of its next match
+    private transient Tuple probe;
+    private transient JoinHashTable matches;
+    private transient int row;
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -104,29 +223,220 @@ public class HashEquiJoin extends Operator {
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here  
         while (true) {
-            while (t2 == null) {
-                if (!child2.hasNext()) return null;
-                t2 = child2.next();
-                Field f = t2.getField(p.getField2());
-                if (map.containsKey(f)) listIt = map.get(f).iterator();
-                else t2 = null;
+            if (matches != null && row != -1) {
+                Tuple t = matches.get(row);
+                row = matches.next(row);
+                return buildOnChild1 ? join(t, probe) : join(probe, t);
+            }
+            matches = null;
+            probe = nextProbe();
+            if (probe != null) {
+                matches = pass.probe(probe);
+                if (matches != null)
+                    row = matches.first(probe.getField(probeField()));
+                continue;
             }
-            while (listIt.hasNext()) {
-	    		Tuple tuple = new Tuple(this.getTupleDesc());
-				Iterator<Field> iterator = listIt.next().fields();
-				int i = 0;
-				while(iterator.hasNext()) {
-					tuple.setField(i, iterator.next());
-					i++;
-				}
-				iterator = t2.fields();
-				while(iterator.hasNext()) {
-					tuple.setField(i, iterator.next());
-					i++;
-				}
-				return tuple;
+            // this pass is done; join the next pair of spilled partitions
+            pass.finishProbe();
+            if (probeFile != null)
+                probeFile.delete();
+            probeFile = null;
+            Partition part = pending.poll();
+            if (part == null)
+                return null;
+            pass = new Pass(part.level + 1);
+            boolean built = false;
+            try {
+                Tuple t;
+                while ((t = part.build.next()) != null)
+                    pass.build(t);
+                pass.finishBuild();
+                built = true;
+            } catch (IOException e) {
+                throw new DbException("could not read spilled tuples: " + e.getMessage());
+            } finally {
+                // neither the partition nor what the new pass spilled is pending
+                if (!built) {
+                    part.delete();
+                    pass.delete();
+                }
+            }
+            part.build.delete();
+            probeFile = part.probe;
+        }
+    }
+
+    /** @return the next tuple of the probe side or of the spilled partition, or null */
+    private Tuple nextProbe() throws DbException, TransactionAbortedException {
+        if (probeFile == null)
+            return probeChild().hasNext() ? probeChild().next() : null;
+        try {
+            return probeFile.next();
+        } catch (IOException e) {
+            throw new DbException("could not read spilled tuples: " + e.getMessage());
+        }
+    }
+
+    private Tuple join(Tuple t1, Tuple t2) {
+        Tuple tuple = new Tuple(td);
+        int n1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            tuple.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            tuple.setField(n1 + i, t2.getField(i));
+        return tuple;
+    }
+
+    /** A pair of spilled partitions and the pass that spilled them. */
+    private static class Partition {
+        final SpillFile build;
+        final SpillFile probe;
+        final int level;
+
+        Partition(SpillFile build, SpillFile probe, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+        }
+
+        void delete() {
+            build.delete();
+            probe.delete();
+        }
+    }
+
+    /**
+     * One pass of the join: FANOUT partitions, each either a hash table in
+     * memory or a pair of files for its build and probe tuples.
+     */
+    private class Pass {
+        private final int level;
+        private final boolean canSpill;
+        private final JoinHashTable[] tables;
+        private final SpillFile[] buildFiles;
+        private final SpillFile[] probeFiles;
+        private int inMemory;
+
+        Pass(int level) {
+            this.level = level;
+            // past MAX_LEVEL the keys are taken to be too skewed to split
+            this.canSpill = level < MAX_LEVEL;
+            Type keyType = buildChild().getTupleDesc().getFieldType(buildField());
+            this.tables = new JoinHashTable[FANOUT];
+            for (int i = 0; i < FANOUT; i++)
+                tables[i] = new JoinHashTable(keyType);
+            this.buildFiles = new SpillFile[FANOUT];
+            this.probeFiles = new SpillFile[FANOUT];
+        }
+
+        boolean spilled() {
+            for (SpillFile f : buildFiles) {
+                if (f != null)
+                    return true;
+            }
+            return false;
+        }
+
+        void build(Tuple t) throws DbException {
+            Field key = t.getField(buildField());
+            int part = SpillFile.partition(key.hashCode(), level, FANOUT);
+            if (buildFiles[part] != null) {
+                write(buildFiles[part], t);
+                return;
+            }
+            tables[part].add(key, t);
+            if (++inMemory > maxBuildTuples && canSpill)
+                spillLargest();
+        }
+
+        /** Moves the largest partition in memory to a file. */
+        private void spillLargest() throws DbException {
+            int largest = -1;
+            for (int i = 0; i < FANOUT; i++) {
+                if (tables[i] != null
+                        && (largest == -1 || tables[i].size() > tables[largest].size()))
+                    largest = i;
+            }
+            JoinHashTable table = tables[largest];
+            try {
+                SpillFile f = new SpillFile(buildChild().getTupleDesc());
+                buildFiles[largest] = f;
+                for (int r = 0; r < table.size(); r++)
+                    f.add(table.get(r));
+            } catch (IOException e) {
+                throw new DbException("could not spill tuples: " + e.getMessage());
+            }
+            tables[largest] = null;
+            inMemory -= table.size();
+        }
+
+        void finishBuild() throws DbException {
+            try {
+                for (SpillFile f : buildFiles) {
+                    if (f != null)
+                        f.finish();
+                }
+            } catch (IOException e) {
+                throw new DbException("could not spill tuples: " + e.getMessage());
+            }
+        }
+
+        /**
+         * @return the table holding the build tuples that match a probe
+         *         tuple, or null if its partition was spilled, in which case
+         *         the tuple is set aside
+         */
+        JoinHashTable probe(Tuple t) throws DbException {
+            Field key = t.getField(probeField());
+            int part = SpillFile.partition(key.hashCode(), level, FANOUT);
+            if (buildFiles[part] == null)
+                return tables[part];
+            try {
+                if (probeFiles[part] == null)
+                    probeFiles[part] = new SpillFile(probeChild().getTupleDesc());
+                probeFiles[part].add(t);
+            } catch (IOException e) {
+                throw new DbException("could not spill tuples: " + e.getMessage());
+            }
+            return null;
+        }
+
+        /** Queues the spilled partitions that have tuples on both sides. */
+        void finishProbe() throws DbException {
+            for (int i = 0; i < FANOUT; i++) {
+                if (buildFiles[i] == null)
+                    continue;
+                if (probeFiles[i] == null) {
+                    buildFiles[i].delete();
+                } else {
+                    try {
+                        probeFiles[i].finish();
+                    } catch (IOException e) {
+                        throw new DbException("could not spill tuples: " + e.getMessage());
+                    }
+                    pending.add(new Partition(buildFiles[i], probeFiles[i], level));
+                }
+                buildFiles[i] = null;
+                probeFiles[i] = null;
+            }
+        }
+
+        /** Removes the files of partitions not yet handed on. */
+        void delete() {
+            for (int i = 0; i < FANOUT; i++) {
+                if (buildFiles[i] != null)
+                    buildFiles[i].delete();
+                if (probeFiles[i] != null)
+                    probeFiles[i].delete();
+            }
+        }
+
+        private void write(SpillFile f, Tuple t) throws DbException {
+            try {
+                f.add(t);
+            } catch (IOException e) {
+                throw new DbException("could not spill tuples: " + e.getMessage());
             }
-            t2 = null;
         }
     }
 
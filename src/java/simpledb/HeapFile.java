@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -18,6 +19,8 @@ public class HeapFile implements DbFile {
 	private File hpfile;
 	private TupleDesc td;
 	private int tbid; //table id associated with this heap
+	private volatile MappedFileReader mapping; //non-null in memory-mapped mode
+	private final FreeSpaceMap freeSpace; //pages inserts have found full
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -31,6 +34,7 @@ public class HeapFile implements DbFile {
     	this.hpfile = f;
     	this.td = td;
     	this.tbid = f.getAbsoluteFile().hashCode();
+    	this.freeSpace = new FreeSpaceMap(f);
     }
 
     /**
@@ -67,15 +71,45 @@ public class HeapFile implements DbFile {
     	return this.td;
     }
 
+    /**
+     * Switches between reading pages with positional reads (the default)
+     * and serving them from a memory mapping of the file. The mapped mode
+     * suits read-mostly tables; writes go through the normal path either way.
+     *
+     * @param mapped true to read pages through a memory mapping
+     */
+    public void setMemoryMapped(boolean mapped) {
+    	this.mapping = mapped ? new MappedFileReader(this.hpfile) : null;
+    }
+
+    /**
+     * Save the free-space map and close the channels on the heap file and
+     * the map.
+     */
+    public void close() {
+    	try {
+    		freeSpace.save();
+    	} catch (IOException e) {
+    		// the stamps in the map show it is stale when next loaded
+    	}
+    	FileChannelPool.close(this.hpfile);
+    	FileChannelPool.close(freeSpace.getFile());
+    }
+
+    /** @return true if pages are read through a memory mapping */
+    public boolean isMemoryMapped() {
+    	return this.mapping != null;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
     	try {
-    		RandomAccessFile raf = new RandomAccessFile(this.hpfile,"r");
     		byte[] page = new byte[BufferPool.getPageSize()];
-    		raf.seek(pid.pageNumber() * BufferPool.getPageSize());
-    		raf.read(page);
-    		raf.close();
+    		long offset = (long) pid.pageNumber() * BufferPool.getPageSize();
+    		MappedFileReader m = this.mapping;
+    		if (m == null || !m.read(offset, page))
+    			FileChannelPool.read(this.hpfile, ByteBuffer.wrap(page), offset);
         	HeapPage hpage = new HeapPage (new HeapPageId (pid.getTableId(),pid.pageNumber()),page);
         	return hpage;
     	}
@@ -89,10 +123,33 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        RandomAccessFile raf = new RandomAccessFile(this.hpfile, "rw");
-        raf.seek(BufferPool.getPageSize() * page.getId().pageNumber());
-        raf.write(page.getPageData());
-        raf.close();
+        FileChannelPool.write(this.hpfile, page.getPageData(),
+                (long) BufferPool.getPageSize() * page.getId().pageNumber());
+        // saved with the next batch of pages, not after every single page
+        noteFreeSpace(page);
+    }
+
+    // see DbFile.java for javadocs
+    public void writePages(List<Page> pages) throws IOException {
+        long[] offsets = new long[pages.size()];
+        byte[][] data = new byte[pages.size()][];
+        for (int i = 0; i < pages.size(); i++) {
+            Page page = pages.get(i);
+            offsets[i] = (long) BufferPool.getPageSize() * page.getId().pageNumber();
+            data[i] = page.getPageData();
+            noteFreeSpace(page);
+        }
+        FileChannelPool.writeAll(this.hpfile, offsets, data);
+        freeSpace.save();
+    }
+
+    /** Bring the free-space map in line with a page that is being written. */
+    private void noteFreeSpace(Page page) {
+        int pgNo = page.getId().pageNumber();
+        if (((HeapPage) page).getNumEmptySlots() > 0)
+            freeSpace.markFree(pgNo);
+        else
+            freeSpace.markFull(pgNo);
     }
 
     /**
@@ -109,15 +166,28 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         if (!t.getTupleDesc().equals(td)) throw new DbException("wrong tupledesc");
-        int i=0;
-        for (i = 0; i < numPages(); i++) {
+        // only visit pages the free-space map does not know to be full
+        int i = freeSpace.nextCandidate(0);
+        for (; i < numPages(); i = freeSpace.nextCandidate(i + 1)) {
+            HeapPageId pid = new HeapPageId(getId(), i);
+            boolean held = Database.getBufferPool().holdsLock(tid, pid);
             HeapPage hp = (HeapPage)(Database.getBufferPool().getPage(tid,
-                    new HeapPageId(getId(), i),Permissions.READ_ONLY));
+                    pid,Permissions.READ_ONLY));
             if (hp.getNumEmptySlots() > 0) break;
+            // a page we filled ourselves is empty again if we abort, so only
+            // committed pages are marked; ours are marked when written
+            if (hp.isDirty() == null)
+                freeSpace.markFull(i);
+            // we only looked at a full page, so other writers may have it
+            if (!held) Database.getBufferPool().releasePage(tid, pid);
         }
-        if (i == numPages()) {
-            HeapPage newPage = new HeapPage(new HeapPageId(getId(), i), HeapPage.createEmptyPageData());
-            writePage(newPage);
+        if (i >= numPages()) {
+            // appends must not race with bulk appends for the same page number
+            synchronized (this) {
+                i = numPages();
+                HeapPage newPage = new HeapPage(new HeapPageId(getId(), i), HeapPage.createEmptyPageData());
+                writePage(newPage);
+            }
         }
         HeapPage hp = (HeapPage)(Database.getBufferPool().getPage(tid,
                     new HeapPageId(getId(), i),Permissions.READ_WRITE));
@@ -139,6 +209,7 @@ public class HeapFile implements DbFile {
         HeapPage hp = (HeapPage)(Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(),
                 Permissions.READ_WRITE));
         hp.deleteTuple(t);
+        freeSpace.markFree(hp.getId().pageNumber());
         ArrayList<Page> pages = new ArrayList<>();
         pages.add(hp);
         return pages;
@@ -150,6 +221,110 @@ public class HeapFile implements DbFile {
         return new HfIterator(tid,tbid);
     }
 
+    /** Number of pages a BulkAppender fills in memory before writing them. */
+    public static final int BULK_APPEND_PAGES = 64;
+
+    /**
+     * Returns a BulkAppender that adds tuples to fresh pages at the end of
+     * this file.
+     *
+     * @param tid the inserting transaction, or null to load a file that no
+     *   transaction is using yet
+     */
+    public BulkAppender bulkAppender(TransactionId tid) {
+        return new BulkAppender(tid);
+    }
+
+    /**
+     * BulkAppender fills new pages in memory and writes them to the end of
+     * the file in runs of BULK_APPEND_PAGES, without going through the
+     * BufferPool one tuple at a time. Free space on existing pages is not
+     * used. The new pages are locked exclusively for the inserting
+     * transaction before they are written, and are emptied again if it
+     * aborts. Since they reach disk before the transaction commits, each
+     * one is first logged as an update from an empty page and the log is
+     * forced, so recovery can empty them after a crash. Call
+     * {@link #finish} to write the last, partly filled page.
+     */
+    public class BulkAppender {
+
+        private final TransactionId tid;
+        private final int slots;
+        private final ArrayList<Tuple> page;
+        private final ArrayList<byte[]> run;
+        private TupleDesc checked;
+
+        BulkAppender(TransactionId tid) {
+            this.tid = tid;
+            this.slots = HeapPage.getNumSlots(td);
+            this.page = new ArrayList<Tuple>(slots);
+            this.run = new ArrayList<byte[]>(BULK_APPEND_PAGES);
+            this.checked = null;
+        }
+
+        /**
+         * Add a tuple. It reaches disk once its run of pages is full or
+         * finish is called.
+         *
+         * @throws DbException if the tuple does not match the file's schema
+         */
+        public void append(Tuple t)
+                throws DbException, IOException, TransactionAbortedException {
+            // tuples from one source share their TupleDesc
+            if (t.getTupleDesc() != checked) {
+                if (!t.getTupleDesc().equals(td))
+                    throw new DbException("wrong tupledesc");
+                checked = t.getTupleDesc();
+            }
+            page.add(t);
+            if (page.size() == slots) {
+                run.add(HeapPage.createPageData(td, page));
+                page.clear();
+                if (run.size() == BULK_APPEND_PAGES)
+                    writeRun(true);
+            }
+        }
+
+        /** Write whatever has not been written yet. */
+        public void finish() throws IOException, TransactionAbortedException {
+            if (!page.isEmpty()) {
+                run.add(HeapPage.createPageData(td, page));
+                page.clear();
+                writeRun(false);
+            } else if (!run.isEmpty()) {
+                writeRun(true);
+            }
+        }
+
+        private void writeRun(boolean allFull) throws IOException, TransactionAbortedException {
+            synchronized (HeapFile.this) {
+                int start = numPages();
+                long[] offsets = new long[run.size()];
+                ArrayList<HeapPageId> pids = new ArrayList<HeapPageId>(run.size());
+                for (int i = 0; i < run.size(); i++) {
+                    pids.add(new HeapPageId(tbid, start + i));
+                    offsets[i] = (long) BufferPool.getPageSize() * (start + i);
+                }
+                if (tid != null) {
+                    Database.getBufferPool().lockAppendedPages(tid, pids);
+                    LogFile log = Database.getLogFile();
+                    byte[] empty = HeapPage.createEmptyPageData();
+                    for (int i = 0; i < run.size(); i++)
+                        log.logWrite(tid, new HeapPage(pids.get(i), empty),
+                                new HeapPage(pids.get(i), run.get(i)));
+                    log.forceTo(log.getCurrentOffset());
+                    // spare later inserts a look at pages we know are full
+                    int full = allFull ? run.size() : run.size() - 1;
+                    for (int i = 0; i < full; i++)
+                        freeSpace.markFull(start + i);
+                }
+                FileChannelPool.writeAll(hpfile, offsets, run.toArray(new byte[run.size()][]));
+                freeSpace.save();
+            }
+            run.clear();
+        }
+    }
+
     public class HfIterator implements DbFileIterator{
 
 
@@ -157,6 +332,10 @@ public class HeapFile implements DbFile {
     	private int pointer;
     	private TransactionId transid;
     	private int tbid;	
+    	private Prefetcher prefetcher;
+    	// the page fillBatch() is reading, and the next slot on it
+    	private HeapPage page;
+    	private int slot;
     	public HfIterator(TransactionId tid, int id) {
     		this.transid = tid;
     		this.tbid = id;
@@ -166,8 +345,18 @@ public class HeapFile implements DbFile {
 			pointer = 0;
 			try {
 			HeapPageId hpid = new HeapPageId (tbid,pointer);
-			HeapPage hp = (HeapPage) Database.getBufferPool().getPage(transid, hpid, Permissions.READ_ONLY);
+			HeapPage hp = (HeapPage) Database.getBufferPool().getScanPage(transid, hpid, Permissions.READ_ONLY);
 			tupleiterator = hp.iterator();
+			page = hp;
+			slot = 0;
+			// pages are read in page number order
+			prefetcher = new Prefetcher(new Prefetcher.Successor() {
+				public PageId next(Page page) {
+					int pgNo = page.getId().pageNumber() + 1;
+					return pgNo < numPages() ? new HeapPageId(tbid, pgNo) : null;
+				}
+			});
+			prefetcher.advance(hp);
 			}
 			catch(Exception e) {
 				throw new DbException("Problems opening/accessing the database");
@@ -180,7 +369,8 @@ public class HeapFile implements DbFile {
 			while ((pointer+1)< numPages()) {
 				pointer++;
 				HeapPageId hpid = new HeapPageId (tbid,pointer);
-				HeapPage hp = (HeapPage) Database.getBufferPool().getPage(transid, hpid, Permissions.READ_ONLY);
+				HeapPage hp = (HeapPage) Database.getBufferPool().getScanPage(transid, hpid, Permissions.READ_ONLY);
+				prefetcher.advance(hp);
 				tupleiterator = hp.iterator();
 				if(tupleiterator.hasNext()) {
 					return true;
@@ -196,6 +386,30 @@ public class HeapFile implements DbFile {
 			
 		}
 
+		/**
+		 * Add the next tuples of the file to a batch, until the batch is full
+		 * or the file ends. Integer fields are decoded straight from the
+		 * pages into the batch's columns, the others only when the batch is
+		 * asked for them. Use either this or next() on an open
+		 * iterator, not both.
+		 */
+		public void fillBatch(TupleBatch batch) throws DbException, TransactionAbortedException {
+			while (page != null) {
+				slot = page.fillBatch(batch, slot);
+				if (batch.isFull())
+					return;
+				if ((pointer+1) >= numPages()) {
+					page = null;
+					return;
+				}
+				pointer++;
+				page = (HeapPage) Database.getBufferPool().getScanPage(transid,
+						new HeapPageId(tbid, pointer), Permissions.READ_ONLY);
+				prefetcher.advance(page);
+				slot = 0;
+			}
+		}
+
 		public void rewind() throws DbException, TransactionAbortedException {
 			close();
 			open();
@@ -204,6 +418,11 @@ public class HeapFile implements DbFile {
 		public void close() {
 			pointer = -1;
 			tupleiterator = null;
+			page = null;
+			if (prefetcher != null) {
+				prefetcher.close();
+				prefetcher = null;
+			}
 		}
     }
 }
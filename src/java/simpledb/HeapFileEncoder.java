@@ -29,6 +29,10 @@ public class HeapFileEncoder {
    * @throws IOException if the temporary/output file can't be opened
    */
   public static void convert(ArrayList<ArrayList<Integer>> tuples, File outFile, int npagebytes, int numFields) throws IOException {
+      if (npagebytes == BufferPool.getPageSize()) {
+          append(tuples, outFile, numFields);
+          return;
+      }
       File tempInput = File.createTempFile("tempTable", ".txt");
       tempInput.deleteOnExit();
       BufferedWriter bw = new BufferedWriter(new FileWriter(tempInput));
@@ -51,6 +55,38 @@ public class HeapFileEncoder {
       convert(tempInput, outFile, npagebytes, numFields);
   }
 
+  /** Write the tuples straight into heap pages with a HeapFile.BulkAppender,
+   * skipping the round trip through a temporary text file.
+   */
+  private static void append(ArrayList<ArrayList<Integer>> tuples, File outFile, int numFields) throws IOException {
+      new FileOutputStream(outFile).close(); // truncate
+      FileChannelPool.close(outFile);
+      TupleDesc td = Utility.getTupleDesc(numFields);
+      HeapFile hf = new HeapFile(outFile, td);
+      HeapFile.BulkAppender appender = hf.bulkAppender(null);
+      try {
+          for (ArrayList<Integer> tuple : tuples) {
+              if (tuple.size() > numFields) {
+                  throw new RuntimeException("Tuple has more than " + numFields + " fields: (" +
+                          Utility.listToString(tuple) + ")");
+              }
+              Tuple t = new Tuple(td);
+              for (int i = 0; i < numFields; i++)
+                  t.setField(i, new IntField(i < tuple.size() ? tuple.get(i) : 0));
+              appender.append(t);
+          }
+          appender.finish();
+      } catch (DbException e) {
+          throw new IOException(e);
+      } catch (TransactionAbortedException e) {
+          throw new IOException(e);
+      }
+      // like the text converter, never leave an empty file behind
+      if (tuples.isEmpty())
+          FileChannelPool.write(outFile, HeapPage.createEmptyPageData(), 0);
+      FileChannelPool.close(outFile);
+  }
+
       public static void convert(File inFile, File outFile, int npagebytes,
                  int numFields) throws IOException {
       Type[] ts = new Type[numFields];
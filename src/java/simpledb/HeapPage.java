@@ -16,8 +16,13 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
+    // tuples inserted into this page, or decoded from data on first use;
+    // null for a used slot that has not been looked at yet
     final Tuple tuples[];
     final int numSlots;
+    // the bytes the page was read from; never modified
+    final byte data[];
+    final int fieldOffsets[];
     private TransactionId tid;
 
     byte[] oldData;
@@ -38,29 +43,32 @@ public class HeapPage implements Page {
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
+     * <p>
+     * The page keeps data rather than copying it, and tuples are only
+     * decoded from it when asked for, one field at a time; so the caller
+     * must not change data afterwards.
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < BufferPool.getPageSize())
+            throw new IOException("short page data");
+        this.data = data;
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        System.arraycopy(data, 0, header, 0, header.length);
+
+        fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
+
+        // the records themselves are decoded lazily, see tuple()
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
 
-        setBeforeImage();
+        // data is never modified, so it can serve as the before image
+        oldData = data;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -117,37 +125,53 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the tuple in a used slot, decoding it on first use as a view
+     *   of the page bytes
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private Tuple tuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = new Tuple(td, data, fieldOffsets, slotOffset(slotId));
+            t.setRecordId(new RecordId(pid, slotId));
+            tuples[slotId] = t;
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    /**
+     * @return where the given slot starts in the page bytes
+     */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
+    /**
+     * Adds the tuples in used slots, starting at the given slot, to a batch
+     * until the batch is full. Integer fields are read from the page bytes
+     * straight into the batch's int vectors; the batch decodes the others
+     * from the page bytes only if they are asked for.
+     *
+     * @return the slot to continue from; numSlots once the page is done
+     */
+    int fillBatch(TupleBatch batch, int slot) {
+        for (; slot < numSlots && !batch.isFull(); slot++) {
+            if (!isSlotUsed(slot))
+                continue;
+            Tuple t = tuples[slot];
+            int off = slotOffset(slot);
+            if (t != null && !t.isViewOf(data, off)) {
+                int row = batch.addRow(pid, slot);
+                for (int j=0; j<fieldOffsets.length; j++)
+                    batch.setField(j, row, t.getField(j));
+                continue;
+            }
+            int row = batch.addRow(pid, slot, data, off);
+            for (int j=0; j<fieldOffsets.length; j++) {
+                if (td.getFieldType(j) == Type.INT_TYPE)
+                    batch.setInt(j, row, Type.readInt(data, off + fieldOffsets[j]));
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
-
-        return t;
+        return slot;
     }
 
     /**
@@ -191,9 +215,19 @@ public class HeapPage implements Page {
                 continue;
             }
 
-            // non-empty slot
+            // non-empty slot still as it was read: copy its bytes
+            Tuple t = tuples[i];
+            if (t == null || t.isViewOf(data, slotOffset(i))) {
+                try {
+                    dos.write(data, slotOffset(i), td.getSize());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = t.getField(j);
                 try {
                     f.serialize(dos);
                 
@@ -235,6 +269,73 @@ public class HeapPage implements Page {
         return new byte[len]; //all 0
     }
 
+    /**
+     * Number of tuple slots on a page of a table with the given schema.
+     */
+    public static int getNumSlots(TupleDesc td) {
+        return (BufferPool.getPageSize()*8) / (td.getSize()*8+1);
+    }
+
+    /**
+     * Static method to generate the bytes of a page whose first slots hold
+     * the given tuples, in order, and whose other slots are empty.
+     * Used to bulk load pages without building a HeapPage for each of them.
+     *
+     * @param td the schema of the tuples
+     * @param tuples the tuples to store; at most getNumSlots(td) of them
+     * @return The returned ByteArray.
+     */
+    public static byte[] createPageData(TupleDesc td, List<Tuple> tuples) {
+        int slots = getNumSlots(td);
+        if (tuples.size() > slots)
+            throw new IllegalArgumentException("more tuples than slots on a page");
+        int len = BufferPool.getPageSize();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            // slots 0 .. tuples.size()-1 are used
+            int headerLen = (slots + 7) / 8;
+            for (int i=0; i<headerLen; i++) {
+                int used = Math.min(8, Math.max(0, tuples.size() - i*8));
+                dos.writeByte((1 << used) - 1);
+            }
+            for (Tuple t : tuples) {
+                for (int j=0; j<td.numFields(); j++)
+                    t.getField(j).serialize(dos);
+            }
+            dos.write(new byte[len - dos.size()]);
+            dos.flush();
+        } catch (IOException e) {
+            // writing to a byte array cannot fail
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Static method to read the tuples in the used slots of page bytes, such
+     * as those made by createPageData, without a HeapPage or the Catalog.
+     * The tuples are views of data, as in a HeapPage, so data must not
+     * change afterwards; they have no RecordId.
+     *
+     * @param td the schema of the tuples
+     * @param data the bytes of a page
+     * @return the tuples, in slot order
+     */
+    public static ArrayList<Tuple> readPageData(TupleDesc td, byte[] data) {
+        int slots = getNumSlots(td);
+        int headerLen = (slots + 7) / 8;
+        int[] offsets = new int[td.numFields()];
+        for (int j=1; j<offsets.length; j++)
+            offsets[j] = offsets[j-1] + td.getFieldType(j-1).getLen();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i=0; i<slots; i++) {
+            if ((data[i/8] & 1 << (i % 8)) != 0)
+                tuples.add(new Tuple(td, data, offsets, headerLen + i * td.getSize()));
+        }
+        return tuples;
+    }
+
     /**
      * Delete the specified tuple from the page;  the tuple should be updated to reflect
      *   that it is no longer stored on any page.
@@ -329,14 +430,57 @@ public class HeapPage implements Page {
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * <p>
+     * The iterator returns the tuples that were on the page when it was
+     * created, and decodes each one only as it gets to it.
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-    	ArrayList<Tuple> tps = new ArrayList<Tuple>();
-    	for(int i = 0; i <numSlots ; i++) {
-    		if(isSlotUsed(i)) tps.add(tuples[i]);
-    	}
-    	return tps.iterator();
+    	final byte[] used = header.clone();
+    	final Tuple[] snapshot = tuples.clone();
+    	return new Iterator<Tuple>() {
+    		int next = advance(0);
+
+    		private int advance(int from) {
+    			while (from < numSlots && (used[from/8] & 1 << (from % 8)) == 0)
+    				from++;
+    			return from;
+    		}
+
+    		public boolean hasNext() {
+    			return next < numSlots;
+    		}
+
+    		public Tuple next() {
+    			if (!hasNext())
+    				throw new NoSuchElementException();
+    			int i = next;
+    			next = advance(i + 1);
+    			if (snapshot[i] != null)
+    				return snapshot[i];
+    			Tuple t = tuples[i];
+    			if (t == null && isSlotUsed(i))
+    				return tuple(i);
+    			if (t != null && t.isViewOf(data, slotOffset(i)))
+    				return t;
+    			// the slot was emptied or refilled since; yield its old tuple
+    			return detached(i);
+    		}
+
+    		public void remove() {
+    			throw new UnsupportedOperationException();
+    		}
+    	};
+    }
+
+    /**
+     * @return a view of the tuple originally read into a slot that is no
+     *   longer in use
+     */
+    private Tuple detached(int slotId) {
+        Tuple t = new Tuple(td, data, fieldOffsets, slotOffset(slotId));
+        t.setRecordId(new RecordId(pid, slotId));
+        return t;
     }
 }
 
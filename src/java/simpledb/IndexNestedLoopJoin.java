@@ -0,0 +1,159 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins each tuple of its outer child with the tuples of
+ * a B+ tree that match it, found by a search of the tree rather than a scan
+ * of the whole inner table. The inner child is an {@link IndexDbIterator},
+ * such as a {@link BTreeScan} of a tree keyed on the join field, that is
+ * reopened with a new {@link IndexPredicate} for every outer tuple. An
+ * equality probe reads one page per level of the tree and the leaves that
+ * hold the key.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate p;
+    private DbIterator child1;
+    private IndexDbIterator child2;
+    private final Predicate.Op indexOp;
+
+    private transient TupleDesc td;
+    // the outer tuple being joined, and whether child2 has been opened
+    private transient Tuple t1;
+    private transient boolean probed;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; its field2 must be
+     *            the key field of the index, and its operator one that an
+     *            index search can answer (see {@link #indexOp})
+     * @param child1
+     *            Iterator for the outer relation to join
+     * @param child2
+     *            Index over the inner relation to join
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, IndexDbIterator child2) {
+        this.indexOp = indexOp(p.getOperator());
+        if (indexOp == null)
+            throw new IllegalArgumentException("an index join cannot search for " + p.getOperator());
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+    }
+
+    /**
+     * Returns the operator that a key of the index must satisfy against the
+     * join field of an outer tuple for the join predicate to hold, with the
+     * sides of the comparison swapped: t1 &lt; key holds where key &gt; t1.
+     *
+     * @return the operator of the index predicate, or null if the join
+     *         predicate cannot be answered by a search of a B+ tree
+     */
+    public static Predicate.Op indexOp(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+            return Predicate.Op.EQUALS;
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return null;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        child1.open();
+        td = getTupleDesc();
+        t1 = null;
+        probed = false;
+    }
+
+    public void close() {
+        child1.close();
+        if (probed)
+            child2.close();
+        probed = false;
+        t1 = null;
+        super.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        t1 = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The matches of each outer tuple come out in index order.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (t1 != null && child2.hasNext())
+                return join(t1, child2.next());
+            if (!child1.hasNext())
+                return null;
+            t1 = child1.next();
+            IndexPredicate ipred = new IndexPredicate(indexOp, t1.getField(p.getField1()));
+            if (probed) {
+                child2.rewind(ipred);
+            } else {
+                child2.open(ipred);
+                probed = true;
+            }
+        }
+    }
+
+    private Tuple join(Tuple t1, Tuple t2) {
+        Tuple tuple = new Tuple(td);
+        int n1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            tuple.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            tuple.setField(n1 + i, t2.getField(i));
+        return tuple;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        if (!(children[1] instanceof IndexDbIterator))
+            throw new IllegalArgumentException("the inner child of an index join must be an index");
+        child1 = children[0];
+        child2 = (IndexDbIterator) children[1];
+    }
+
+}
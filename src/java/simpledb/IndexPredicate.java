@@ -28,6 +28,14 @@ public class IndexPredicate implements Serializable {
     	this.fval = fvalue;
     }
 
+    /**
+     * @return true if a search of a B+ tree can answer the operation: any
+     *   comparison but NOT_EQUALS and LIKE
+     */
+    public static boolean isSupported(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
     public Field getField() {
         // some code goes here
         return this.fval;
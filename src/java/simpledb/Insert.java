@@ -1,5 +1,8 @@
 package simpledb;
 
+import java.io.IOException;
+import java.util.ArrayList;
+
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
  * constructor
@@ -7,6 +10,13 @@ package simpledb;
 public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /**
+     * Once a child has produced this many tuples for a heap file, the rest
+     * are bulk appended to fresh pages instead of being inserted one by one.
+     */
+    public static final int BULK_INSERT_TUPLES = 10000;
+
     private TransactionId t;
     private DbIterator child;
     private int tableId;
@@ -75,6 +85,25 @@ public class Insert extends Operator {
         // some code goes here
         if (flag) return null;
         int count = 0;
+        DbFile file = Database.getCatalog().getDatabaseFile(this.tableId);
+        if (file instanceof HeapFile) {
+            // hold back tuples until we know whether the child is large
+            ArrayList<Tuple> held = new ArrayList<Tuple>();
+            while (child.hasNext() && held.size() < BULK_INSERT_TUPLES)
+                held.add(child.next());
+            if (child.hasNext()) {
+                count = bulkInsert((HeapFile) file, held);
+                held.clear();
+            }
+            for (Tuple tup : held) {
+                try {
+                    Database.getBufferPool().insertTuple(this.t, this.tableId, tup);
+                    count++;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
         while (child.hasNext()) {
             try {
                 Database.getBufferPool().insertTuple(this.t, this.tableId, child.next());
@@ -89,6 +118,27 @@ public class Insert extends Operator {
         return tuple;
     }
 
+    /** Append held and then the rest of the child's tuples to fresh pages. */
+    private int bulkInsert(HeapFile file, ArrayList<Tuple> held)
+            throws TransactionAbortedException, DbException {
+        HeapFile.BulkAppender appender = file.bulkAppender(this.t);
+        int count = 0;
+        try {
+            for (Tuple tup : held) {
+                appender.append(tup);
+                count++;
+            }
+            while (child.hasNext()) {
+                appender.append(child.next());
+                count++;
+            }
+            appender.finish();
+        } catch (IOException e) {
+            throw new DbException("bulk insert failed: " + e.getMessage());
+        }
+        return count;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         // some code goes here
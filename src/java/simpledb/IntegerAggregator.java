@@ -3,15 +3,39 @@ import java.util.*;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * The state of each group is kept in parallel primitive arrays, indexed by
+ * group number in the order the groups were first seen, with 64-bit sums
+ * and counts. Integer group keys are found through an open-addressing hash
+ * table of group numbers, so merging a tuple neither boxes nor allocates.
+ * <p>
+ * Results are INT fields. A SUM or COUNT that does not fit in an int makes
+ * the result iterator fail with a DbException on open, rather than return
+ * a wrapped value. AVG divides the 64-bit sum by the count and truncates
+ * toward zero, so it always fits.
  */
 public class IntegerAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
+    private static final int INITIAL_GROUPS = 16;
     private int gbfield, afield;
     private Type gbfieldtype;
     private Op what;
     private TupleDesc td;
-    private HashMap<Field,ArrayList<Integer>> data; //[hold,count,sum]
+
+    // per group state, indexed by group number
+    private int numGroups;
+    private long[] sums;
+    private long[] counts;
+    private int[] mins;
+    private int[] maxs;
+    // the key of each group, when grouping on an int field or another field
+    private int[] intKeys;
+    private Field[] fieldKeys;
+    // int keys: open-addressing table of group number + 1, 0 for a free slot
+    private int[] table;
+    // other keys: group number by key
+    private HashMap<Field, Integer> fieldGroups;
 
     /**
      * Aggregate constructor
@@ -34,7 +58,20 @@ public class IntegerAggregator implements Aggregator {
     	this.gbfieldtype = gbfieldtype;
     	this.afield = afield;
     	this.what = what;
-    	this.data = new HashMap<Field, ArrayList<Integer>>();
+    	if (what != Op.MIN && what != Op.MAX && what != Op.SUM && what != Op.AVG && what != Op.COUNT)
+    		throw new UnsupportedOperationException("unsupported aggregate " + what);
+    	this.numGroups = 0;
+    	this.sums = new long[INITIAL_GROUPS];
+    	this.counts = new long[INITIAL_GROUPS];
+    	this.mins = new int[INITIAL_GROUPS];
+    	this.maxs = new int[INITIAL_GROUPS];
+    	if (gbfield != NO_GROUPING && gbfieldtype == Type.INT_TYPE) {
+    		this.intKeys = new int[INITIAL_GROUPS];
+    		this.table = new int[INITIAL_GROUPS * 2];
+    	} else if (gbfield != NO_GROUPING) {
+    		this.fieldKeys = new Field[INITIAL_GROUPS];
+    		this.fieldGroups = new HashMap<Field, Integer>();
+    	}
     	if (gbfield==NO_GROUPING) td = new TupleDesc(new Type[]{Type.INT_TYPE});
     	else td = new TupleDesc(new Type[] {gbfieldtype,Type.INT_TYPE});
     }
@@ -48,34 +85,174 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-    	Field f;
-    	if (gbfield == NO_GROUPING) f = null;
-    	f = tup.getField(gbfield);
-    	int value = ((IntField)tup.getField(afield)).getValue();
-    	if(data.containsKey(f)) {
-    		int c,sum,temp;
-    		temp=data.get(f).get(0);
-    		c=data.get(f).get(1);
-    		sum=data.get(f).get(2);
-    		switch(what) {
-	            case MIN:
-	                if (value < temp) data.get(f).set(0, value);
-	                break;
-	            case MAX:
-	                if (value > temp) data.get(f).set(0, value);
-	                break;
-	            case SUM:
-	            case AVG:
-	            	data.get(f).set(2, sum+value);
-	            case COUNT:
-	        		data.get(f).set(1, c+1);
-	                break;
-	            default:
-	                break;
-    		}
+    	int value = ((IntField) tup.getField(afield)).getValue();
+    	int g;
+    	if (gbfield == NO_GROUPING)
+    		g = soleGroup();
+    	else if (table != null)
+    		g = group(((IntField) tup.getField(gbfield)).getValue());
+    	else
+    		g = group(tup.getField(gbfield));
+    	add(g, value);
+    }
+
+    public boolean mergeIntoExistingGroup(Tuple tup) {
+    	int g;
+    	if (gbfield == NO_GROUPING) {
+    		g = numGroups - 1;
+    	} else if (table != null) {
+    		g = find(((IntField) tup.getField(gbfield)).getValue());
+    	} else {
+    		Integer n = fieldGroups.get(tup.getField(gbfield));
+    		g = n == null ? -1 : n;
+    	}
+    	if (g < 0)
+    		return false;
+    	add(g, ((IntField) tup.getField(afield)).getValue());
+    	return true;
+    }
+
+    public int numGroups() {
+    	return numGroups;
+    }
+
+    /**
+     * Merge the selected rows of a batch, reading the aggregate field and
+     * an int group-by field straight from their int vectors.
+     */
+    public void mergeBatch(TupleBatch batch) {
+    	int[] sel = batch.getSelection();
+    	int n = batch.size();
+    	if (n == 0)
+    		return;
+    	int[] values = batch.getIntColumn(afield);
+    	if (gbfield == NO_GROUPING) {
+    		int g = soleGroup();
+    		for (int i = 0; i < n; i++)
+    			add(g, values[sel[i]]);
+    	} else if (table != null) {
+    		int[] keys = batch.getIntColumn(gbfield);
+    		for (int i = 0; i < n; i++)
+    			add(group(keys[sel[i]]), values[sel[i]]);
+    	} else {
+    		for (int i = 0; i < n; i++)
+    			add(group(batch.getField(gbfield, sel[i])), values[sel[i]]);
+    	}
+    }
+
+    private void add(int g, int value) {
+    	sums[g] += value;
+    	counts[g]++;
+    	if (value < mins[g])
+    		mins[g] = value;
+    	if (value > maxs[g])
+    		maxs[g] = value;
+    }
+
+    /** @return the only group when there is no grouping */
+    private int soleGroup() {
+    	return numGroups == 0 ? newGroup() : 0;
+    }
+
+    /** @return the group of an int key, or -1 if there is none */
+    private int find(int key) {
+    	int mask = table.length - 1;
+    	int h = hash(key) & mask;
+    	int g;
+    	while ((g = table[h] - 1) >= 0) {
+    		if (intKeys[g] == key)
+    			return g;
+    		h = (h + 1) & mask;
+    	}
+    	return -1;
+    }
+
+    /** @return the group of an int key, created if it is new */
+    private int group(int key) {
+    	int mask = table.length - 1;
+    	int h = hash(key) & mask;
+    	int g;
+    	while ((g = table[h] - 1) >= 0) {
+    		if (intKeys[g] == key)
+    			return g;
+    		h = (h + 1) & mask;
+    	}
+    	g = newGroup();
+    	intKeys[g] = key;
+    	table[h] = g + 1;
+    	// keep the table at most half full
+    	if (numGroups * 2 > table.length)
+    		rehash(table.length * 2);
+    	return g;
+    }
+
+    /** @return the group of a key that is not an int, created if it is new */
+    private int group(Field key) {
+    	Integer g = fieldGroups.get(key);
+    	if (g != null)
+    		return g;
+    	int n = newGroup();
+    	fieldKeys[n] = key;
+    	fieldGroups.put(key, n);
+    	return n;
+    }
+
+    private static int hash(int key) {
+    	int h = key * 0x9E3779B9;
+    	return h ^ (h >>> 16);
+    }
+
+    private void rehash(int size) {
+    	table = new int[size];
+    	int mask = size - 1;
+    	for (int g = 0; g < numGroups; g++) {
+    		int h = hash(intKeys[g]) & mask;
+    		while (table[h] != 0)
+    			h = (h + 1) & mask;
+    		table[h] = g + 1;
+    	}
+    }
+
+    /** @return the number of a new, empty group */
+    private int newGroup() {
+    	if (numGroups == sums.length) {
+    		int n = sums.length * 2;
+    		sums = Arrays.copyOf(sums, n);
+    		counts = Arrays.copyOf(counts, n);
+    		mins = Arrays.copyOf(mins, n);
+    		maxs = Arrays.copyOf(maxs, n);
+    		if (intKeys != null)
+    			intKeys = Arrays.copyOf(intKeys, n);
+    		if (fieldKeys != null)
+    			fieldKeys = Arrays.copyOf(fieldKeys, n);
     	}
-    	else {
-    		data.put(f,new ArrayList<Integer>(Arrays.asList(value,1,value)));
+    	int g = numGroups++;
+    	sums[g] = 0;
+    	counts[g] = 0;
+    	mins[g] = Integer.MAX_VALUE;
+    	maxs[g] = Integer.MIN_VALUE;
+    	return g;
+    }
+
+    /**
+     * @return the aggregate value of a group. AVG divides the 64-bit sum, so
+     *         it is right even where the sum does not fit in an int.
+     * @throws ArithmeticException if a SUM or COUNT does not fit in an int
+     */
+    private int value(int g) {
+    	switch (what) {
+    	case MIN:
+    		return mins[g];
+    	case MAX:
+    		return maxs[g];
+    	case SUM:
+    		return Math.toIntExact(sums[g]);
+    	case AVG:
+    		return (int) (sums[g] / counts[g]);
+    	case COUNT:
+    		return Math.toIntExact(counts[g]);
+    	default:
+    		throw new IllegalStateException("impossible to reach here");
     	}
     }
 
@@ -85,39 +262,25 @@ public class IntegerAggregator implements Aggregator {
      * @return a DbIterator whose tuples are the pair (groupVal, aggregateVal)
      *         if using group, or a single (aggregateVal) if no grouping. The
      *         aggregateVal is determined by the type of aggregate specified in
-     *         the constructor.
+     *         the constructor. If an aggregate value overflows an int, the
+     *         iterator throws a DbException when opened.
      */
     public DbIterator iterator() {
         // some code goes here
-    	Set<Field> keys = data.keySet();
-    	Iterator<Field> keyItr = keys.iterator();
-    	ArrayList<Tuple> tuplelist = new ArrayList<Tuple>();
-    	while(keyItr.hasNext()){
+    	ArrayList<Tuple> tuplelist = new ArrayList<Tuple>(numGroups);
+    	for (int g = 0; g < numGroups; g++) {
     		Tuple t = new Tuple(td);
-    		Field key = (Field)keyItr.next();
-    		int value=0;
-    		switch(what) {
-	            case MIN:
-	                value=data.get(key).get(0);
-	                break;
-	            case MAX:
-	            	value=data.get(key).get(0);
-	                break;
-	            case SUM:
-	            	value=data.get(key).get(2);
-	            	break;
-	            case AVG:
-	            	value=data.get(key).get(2)/data.get(key).get(1);
-	            	break;
-	            case COUNT:
-	            	value=data.get(key).get(1);
-	                break;
+    		IntField value;
+    		try {
+    			value = new IntField(value(g));
+    		} catch (ArithmeticException e) {
+    			return new FailedIterator(td, what + " overflows the INT result");
     		}
-    		if(gbfield == NO_GROUPING){
-    			t.setField(0, new IntField(value));
-    		}else{
-    			t.setField(0, key);
-    			t.setField(1, new IntField(value));
+    		if (gbfield == NO_GROUPING) {
+    			t.setField(0, value);
+    		} else {
+    			t.setField(0, intKeys != null ? new IntField(intKeys[g]) : fieldKeys[g]);
+    			t.setField(1, value);
     		}
     		tuplelist.add(t);
     	}
@@ -4,12 +4,32 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * This is a block nested loops join: it reads up to
+ * {@link #getBlockTuples} tuples of child1 at a time, and joins each
+ * block with a single pass over child2, so child2 is scanned once per block
+ * rather than once per tuple of child1.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of tuples of child1 joined per pass over child2 */
+    public static final int DEFAULT_BLOCK_TUPLES = 1 << 14;
+
     private JoinPredicate p;
     private DbIterator child1,child2;
+    private int blockTuples = DEFAULT_BLOCK_TUPLES;
+
+    private transient TupleDesc td;
+    // the block of child1 and its join fields, the tuple of child2 being
+    // joined with it and the next block position to compare it with
+    private transient ArrayList<Tuple> block;
+    private transient Field[] blockKeys;
+    private transient Tuple t2;
+    private transient Field key2;
+    private transient int pos;
+    private transient int passes;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -34,6 +54,20 @@ public class Join extends Operator {
         return p;
     }
 
+    /**
+     * Sets the number of tuples of child1 held in memory and joined per pass
+     * over child2.
+     */
+    public void setBlockTuples(int blockTuples) {
+        if (blockTuples < 1)
+            throw new IllegalArgumentException("blockTuples must be positive");
+        this.blockTuples = blockTuples;
+    }
+
+    public int getBlockTuples() {
+        return blockTuples;
+    }
+
     /**
      * @return
      *       the field name of join field1. Should be quantified by
@@ -69,10 +103,24 @@ public class Join extends Operator {
     	super.open();
     	child1.open();
     	child2.open();
+    	td = getTupleDesc();
+    	block = new ArrayList<Tuple>();
+    	blockKeys = new Field[0];
+    	restart();
+    }
+
+    private void restart() {
+    	block.clear();
+    	t2 = null;
+    	pos = 0;
+    	passes = 0;
     }
 
     public void close() {
         // some code goes here
+    	block = null;
+    	blockKeys = null;
+    	t2 = null;
     	child1.close();
     	child2.close();
     	super.close();
@@ -82,6 +130,7 @@ public class Join extends Operator {
         // some code goes here
     	child1.rewind();
     	child2.rewind();
+    	restart();
     }
 
     /**
@@ -102,35 +151,55 @@ public class Join extends Operator {
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple t1;
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-    	if(child1 == null || child2 == null) return null;
-    	if (t1==null) t1 = child1.next();
-        while(t1!=null) {	
-        	while(child2.hasNext()) {
-            	Tuple t2 = child2.next();
-        		if (p.filter(t1, t2)) {
-        			Tuple tuple = new Tuple(this.getTupleDesc());
-        			Iterator<Field> iterator = t1.fields();
-        			int i = 0;
-        			while(iterator.hasNext()) {
-        				tuple.setField(i, iterator.next());
-        				i++;
-        			}
-        			iterator = t2.fields();
-        			while(iterator.hasNext()) {
-        				tuple.setField(i, iterator.next());
-        				i++;
-        			}
-        			return tuple;
-        		}
-        	}
-        	if (!child1.hasNext()) return null;
-        	t1 = child1.next();
-        	child2.rewind();
+        Predicate.Op op = p.getOperator();
+        while (true) {
+            if (t2 != null) {
+                while (pos < block.size()) {
+                    int i = pos++;
+                    if (blockKeys[i].compare(op, key2))
+                        return join(block.get(i), t2);
+                }
+                t2 = null;
+            }
+            if (!block.isEmpty() && child2.hasNext()) {
+                t2 = child2.next();
+                key2 = t2.getField(p.getField2());
+                pos = 0;
+                continue;
+            }
+            // this block is done with; join the next one
+            if (!nextBlock())
+                return null;
+            if (passes++ > 0)
+                child2.rewind();
+        }
+    }
+
+    /** Reads the next block of child1; @return false if there is none */
+    private boolean nextBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        while (block.size() < blockTuples && child1.hasNext()) {
+            Tuple t = child1.next();
+            t.materialize();
+            block.add(t);
         }
-        return null;
+        if (blockKeys.length < block.size())
+            blockKeys = new Field[block.size()];
+        for (int i = 0; i < block.size(); i++)
+            blockKeys[i] = block.get(i).getField(p.getField1());
+        return !block.isEmpty();
+    }
+
+    private Tuple join(Tuple t1, Tuple t2) {
+        Tuple tuple = new Tuple(td);
+        int n1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            tuple.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            tuple.setField(n1 + i, t2.getField(i));
+        return tuple;
     }
 
     @Override
@@ -143,7 +212,7 @@ public class Join extends Operator {
     public void setChildren(DbIterator[] children) {
         // some code goes here
     	child1 = children[0];
-    	child2 = children[2];
+    	child2 = children[1];
     }
 
 }
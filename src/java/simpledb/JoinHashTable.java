@@ -0,0 +1,139 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * JoinHashTable holds the build side tuples of a hash join, found by their
+ * join field. Rows are numbered in the order they were added, and the rows
+ * of a key are chained through an int array rather than kept in a list per
+ * key. Int keys are looked up in an open-addressing table of primitive ints,
+ * so the table holds no boxed key, list or entry object per tuple.
+ * <p>
+ * Usage: <code>for (int r = t.first(key); r != -1; r = t.next(r))</code>
+ * visits the rows of a key, and {@link #get} returns the tuple of a row.
+ */
+public class JoinHashTable {
+
+    private static final int INITIAL_ROWS = 16;
+
+    private final boolean intKeys;
+    private int size;
+    private Tuple[] rows;
+    // the next row with the same key, or -1
+    private int[] next;
+    // int keys: the key of each row, and an open-addressing table of the
+    // last row added for each key + 1, 0 for a free slot
+    private int[] keys;
+    private int[] table;
+    private int numKeys;
+    // other keys: the last row added for each key
+    private HashMap<Field, Integer> heads;
+
+    /**
+     * Creates an empty table.
+     *
+     * @param keyType the type of the join field of the tuples added
+     */
+    public JoinHashTable(Type keyType) {
+        this.intKeys = keyType == Type.INT_TYPE;
+        this.rows = new Tuple[INITIAL_ROWS];
+        this.next = new int[INITIAL_ROWS];
+        if (intKeys) {
+            this.keys = new int[INITIAL_ROWS];
+            this.table = new int[INITIAL_ROWS * 2];
+        } else {
+            this.heads = new HashMap<Field, Integer>();
+        }
+    }
+
+    /** @return the number of tuples added */
+    public int size() {
+        return size;
+    }
+
+    /** @return the tuple of a row */
+    public Tuple get(int row) {
+        return rows[row];
+    }
+
+    /** Adds a tuple with the given join key. */
+    public void add(Field key, Tuple t) {
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, size * 2);
+            next = Arrays.copyOf(next, size * 2);
+            if (intKeys)
+                keys = Arrays.copyOf(keys, size * 2);
+        }
+        int row = size++;
+        t.materialize();
+        rows[row] = t;
+        if (!intKeys) {
+            Integer head = heads.put(key, row);
+            next[row] = head == null ? -1 : head;
+            return;
+        }
+        int k = ((IntField) key).getValue();
+        keys[row] = k;
+        int mask = table.length - 1;
+        int h = hash(k) & mask;
+        int head;
+        while ((head = table[h] - 1) >= 0) {
+            if (keys[head] == k) {
+                next[row] = head;
+                table[h] = row + 1;
+                return;
+            }
+            h = (h + 1) & mask;
+        }
+        next[row] = -1;
+        table[h] = row + 1;
+        // keep the table at most half full
+        if (++numKeys * 2 > table.length)
+            rehash(table.length * 2);
+    }
+
+    /** @return the last row added with the given key, or -1 if there is none */
+    public int first(Field key) {
+        if (!intKeys) {
+            Integer head = heads.get(key);
+            return head == null ? -1 : head;
+        }
+        if (!(key instanceof IntField))
+            return -1;
+        int k = ((IntField) key).getValue();
+        int mask = table.length - 1;
+        int h = hash(k) & mask;
+        int head;
+        while ((head = table[h] - 1) >= 0) {
+            if (keys[head] == k)
+                return head;
+            h = (h + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** @return the row added before the given one with the same key, or -1 */
+    public int next(int row) {
+        return next[row];
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void rehash(int capacity) {
+        int[] old = table;
+        table = new int[capacity];
+        int mask = capacity - 1;
+        for (int head : old) {
+            if (head == 0)
+                continue;
+            int h = hash(keys[head - 1]) & mask;
+            while (table[h] != 0)
+                h = (h + 1) & mask;
+            table[h] = head;
+        }
+    }
+}
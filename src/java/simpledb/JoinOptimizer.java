@@ -11,6 +11,9 @@ import javax.swing.tree.*;
  * logical plan.
  */
 public class JoinOptimizer {
+    /** Fraction of the pairs of tuples assumed to satisfy a range predicate */
+    static final double RANGE_FRACTION = 0.4;
+
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
@@ -44,6 +47,34 @@ public class JoinOptimizer {
      */
     public static DbIterator instantiateJoin(LogicalJoinNode lj,
             DbIterator plan1, DbIterator plan2) throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, -1, -1);
+    }
+
+    /**
+     * Return best iterator for computing a given logical join, given the
+     * estimated cardinalities of the left and right subplans. When plan2
+     * scans a B+ tree keyed on its join field and searching it once per
+     * tuple of plan1 reads fewer pages than scanning it, the join is an
+     * {@link IndexNestedLoopJoin}. An equality join of two subplans that both
+     * return tuples in order of their join fields is computed by a
+     * {@link SortMergeJoin}. Any other equality join is computed by a
+     * {@link HashEquiJoin} that builds its hash tables on the smaller
+     * subplan, or on plan1 if either cardinality is unknown.
+     * 
+     * @param lj
+     *            The join being considered
+     * @param plan1
+     *            The left join node's child
+     * @param plan2
+     *            The right join node's child
+     * @param card1
+     *            Estimated cardinality of plan1, or -1 if unknown
+     * @param card2
+     *            Estimated cardinality of plan2, or -1 if unknown
+     */
+    public static DbIterator instantiateJoin(LogicalJoinNode lj,
+            DbIterator plan1, DbIterator plan2, int card1, int card2)
+            throws ParsingException {
 
         int t1id = 0, t2id = 0;
         DbIterator j;
@@ -68,12 +99,93 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        BTreeFile index = lj instanceof LogicalSubplanJoinNode ? null : indexOn(plan2, t2id);
+        if (index != null && card1 >= 0 && useIndex(lj.p, card1, index)) {
+            SeqScan s = (SeqScan) plan2;
+            j = new IndexNestedLoopJoin(p, plan1, new BTreeScan(s.getTransactionId(),
+                    index.getId(), s.getAlias(), null));
+        } else if (lj.p == Predicate.Op.EQUALS && !(lj instanceof LogicalSubplanJoinNode)
+                && isOrderedOn(plan1, t1id) && isOrderedOn(plan2, t2id)) {
+            j = new SortMergeJoin(p, plan1, plan2, true, true);
+        } else if (lj.p == Predicate.Op.EQUALS) {
+            boolean buildOnPlan1 = card1 < 0 || card2 < 0 || card1 <= card2;
+            j = new HashEquiJoin(p, plan1, plan2, buildOnPlan1);
+        } else {
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
     }
 
+    /**
+     * @return true if the plan returns its tuples in ascending order of the
+     *         given field: it scans a B+ tree keyed on the field, possibly
+     *         through filters, or sorts or merge joins on it
+     */
+    static boolean isOrderedOn(DbIterator plan, int field) {
+        if (plan instanceof SeqScan) {
+            return indexOn(plan, field) != null;
+        } else if (plan instanceof BTreeScan) {
+            DbFile f = Database.getCatalog().getDatabaseFile(((BTreeScan) plan).getTableId());
+            return ((BTreeFile) f).keyField() == field;
+        } else if (plan instanceof Filter) {
+            return isOrderedOn(((Filter) plan).getChildren()[0], field);
+        } else if (plan instanceof OrderBy) {
+            OrderBy o = (OrderBy) plan;
+            return o.isASC() && o.getOrderByField() == field;
+        } else if (plan instanceof TopN) {
+            TopN o = (TopN) plan;
+            return o.isASC() && o.getOrderByField() == field;
+        } else if (plan instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) plan;
+            int n1 = j.getChildren()[0].getTupleDesc().numFields();
+            return field == j.getJoinPredicate().getField1()
+                    || field == n1 + j.getJoinPredicate().getField2();
+        }
+        return false;
+    }
+
+    /**
+     * @return the B+ tree that the plan scans, if it is a scan of a B+ tree
+     *         keyed on the given field, or null
+     */
+    static BTreeFile indexOn(DbIterator plan, int field) {
+        if (!(plan instanceof SeqScan))
+            return null;
+        int tableid = Database.getCatalog().getTableId(((SeqScan) plan).getTableName());
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (f instanceof BTreeFile && ((BTreeFile) f).keyField() == field)
+            return (BTreeFile) f;
+        return null;
+    }
+
+    /**
+     * @return true if an index nested loops join, searching the index once
+     *         for each of card1 outer tuples, reads fewer of its pages than
+     *         the joins without an index, which scan it once for an equality
+     *         join and once per block of outer tuples otherwise
+     */
+    static boolean useIndex(Predicate.Op op, int card1, BTreeFile index) {
+        if (IndexNestedLoopJoin.indexOp(op) == null)
+            return false;
+        double scans = op == Predicate.Op.EQUALS ? 1
+                : Math.max(1, Math.ceil((double) card1 / Join.DEFAULT_BLOCK_TUPLES));
+        return indexProbePages(op, card1, index) < scans * index.numPages();
+    }
+
+    /**
+     * @return the estimated number of pages an index nested loops join reads
+     *         from the index, searching it once for each of card1 outer
+     *         tuples. A range search also reads a fraction of the leaves.
+     */
+    static double indexProbePages(Predicate.Op op, int card1, BTreeFile index) {
+        double pages = index.estimateProbePages();
+        if (op != Predicate.Op.EQUALS)
+            pages += RANGE_FRACTION * index.numPages();
+        return (double) card1 * pages;
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -102,16 +214,47 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, null);
+    }
+
+    /**
+     * Estimate the cost of a join, as {@link #estimateJoinCost(LogicalJoinNode,
+     * int, int, double, double)}, where the right-hand side may be a scan of a
+     * B+ tree keyed on its join field. If {@link #useIndex} chooses to search
+     * that index per left-hand tuple, its cost is the pages of those searches,
+     * priced at the right-hand side's cost per page.
+     * 
+     * @param index
+     *            The B+ tree on the join field that the right-hand side
+     *            scans, or null if it is not such a scan
+     */
+    double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, BTreeFile index) {
+        if (index != null && !(j instanceof LogicalSubplanJoinNode)
+                && useIndex(j.p, card1, index)) {
+            // an IndexNestedLoopJoin reads the left-hand side once and only
+            // compares the tuples each search finds
+            double ioCostPerPage = index.numPages() == 0 ? 0 : cost2 / index.numPages();
+            double matches = j.p == Predicate.Op.EQUALS ? card1 : RANGE_FRACTION * card1 * card2;
+            return cost1 + indexProbePages(j.p, card1, index) * ioCostPerPage + matches;
+        }
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 5.
             return card1 + cost1 + cost2;
+        } else if (j.p == Predicate.Op.EQUALS) {
+            // a HashEquiJoin reads both sides once, building on the smaller;
+            // if that does not fit in memory, most of both sides is written
+            // to partition files and read back once more
+            double cost = cost1 + cost2 + card1 + card2;
+            if (Math.min(card1, card2) > HashEquiJoin.DEFAULT_MAX_BUILD_TUPLES)
+                cost += 2 * (cost1 + cost2);
+            return cost;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-        	return cost1 + card1*cost2 + card1*card2;
+            // a block nested loops Join scans the right-hand side once per
+            // block of the left-hand side, and compares every pair of tuples
+            double blocks = Math.max(1, Math.ceil((double) card1 / Join.DEFAULT_BLOCK_TUPLES));
+            return cost1 + blocks*cost2 + (double) card1*card2;
         }
     }
 
@@ -166,7 +309,7 @@ public class JoinOptimizer {
                 return card2;
             }
         } else {
-            return (int) (0.4*card1*card2);
+            return (int) (RANGE_FRACTION*card1*card2);
         }
     }
 
@@ -231,6 +374,10 @@ public class JoinOptimizer {
 
         // some code goes here
         //Replace the following
+    	if (joins.isEmpty()) {
+    		// a single table; the plan cache has no entry for the empty set
+    		return new Vector<LogicalJoinNode>();
+    	}
     	PlanCache cache = new PlanCache();
         Set<LogicalJoinNode> hash = new HashSet<LogicalJoinNode>(joins);
         Set<Set<LogicalJoinNode>> join = enumerateSubsets(joins,1);
@@ -321,6 +468,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // whether each side is a base table rather than the subplan prevBest
+        boolean t1Base = true, t2Base = true;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -355,6 +504,7 @@ public class JoinOptimizer {
                                        // left
                 // subtree is
                 t1card = bestCard;
+                t1Base = false;
                 leftPkey = hasPkey(prevBest);
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
@@ -371,6 +521,7 @@ public class JoinOptimizer {
                                        // left
                 // subtree is
                 t2card = bestCard;
+                t2Base = false;
                 rightPkey = hasPkey(prevBest);
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
@@ -385,10 +536,12 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost,
+                t2Base ? baseTableIndex(j.t2Alias, j.f2PureName) : null);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost,
+                t1Base ? baseTableIndex(j.t1Alias, j.f1PureName) : null);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -410,6 +563,23 @@ public class JoinOptimizer {
         return cc;
     }
 
+    /**
+     * @return the B+ tree that stores the given table, if it is keyed on the
+     *         given field and the table has no filters, so that its plan is
+     *         a scan that {@link #instantiateJoin} can search instead; or null.
+     *         A filter that keeps every row still wraps the scan, so it
+     *         counts as well.
+     */
+    BTreeFile baseTableIndex(String tableAlias, String field) {
+        if (tableAlias == null || p.hasFilter(tableAlias))
+            return null;
+        DbFile f = Database.getCatalog().getDatabaseFile(p.getTableId(tableAlias));
+        if (!(f instanceof BTreeFile))
+            return null;
+        BTreeFile index = (BTreeFile) f;
+        return field.equals(index.getTupleDesc().getFieldName(index.keyField())) ? index : null;
+    }
+
     /**
      * Return true if the specified table is in the list of joins, false
      * otherwise
@@ -432,7 +602,7 @@ public class JoinOptimizer {
      * @param field
      *            The pure name of the field
      */
-    private boolean isPkey(String tableAlias, String field) {
+    boolean isPkey(String tableAlias, String field) {
         int tid1 = p.getTableId(tableAlias);
         String pkey1 = Database.getCatalog().getPrimaryKey(tid1);
 
@@ -0,0 +1,81 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Limit is an operator that returns only the first tuples of its child, as
+ * a LIMIT clause without ORDER BY. It stops reading the child once it has
+ * returned them.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private DbIterator child;
+    private final int limit;
+    private transient int count;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            the number of tuples to return at most
+     * @param child
+     *            the tuples to return the first of
+     */
+    public Limit(int limit, DbIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        this.limit = limit;
+        this.child = child;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        count = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        count = 0;
+    }
+
+    /**
+     * Returns the next tuple of the child, until limit tuples have been
+     * returned.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (count >= limit || !child.hasNext())
+            return null;
+        count++;
+        return child.next();
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -0,0 +1,250 @@
+package simpledb;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LockManager keeps the page-level lock table that BufferPool uses for
+ * strict two-phase locking. A transaction may hold a shared lock (for
+ * READ_ONLY access) or an exclusive lock (for READ_WRITE access) on a page;
+ * a shared lock is upgraded in place when its holder is the only sharer.
+ * <p>
+ * Every page has its own lock object in a concurrent table, and waiting
+ * happens on that object's monitor, so transactions working on different
+ * pages never synchronize on anything shared. Lock objects are dropped from
+ * the table once nobody holds or waits for them.
+ * <p>
+ * Transactions that have to wait are entered into a {@link WaitsForGraph}.
+ * When waiting would close a cycle, the transaction on the cycle holding the
+ * fewest exclusive locks (and so having dirtied the fewest pages) is picked
+ * as the victim and only it aborts with a TransactionAbortedException.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** Lock state of a single page, guarded by its own monitor. */
+    private static class PageLock {
+        final HashSet<TransactionId> holders = new HashSet<TransactionId>();
+        boolean exclusive = false;
+        int waiters = 0;
+        // set once the lock has been removed from the table
+        boolean retired = false;
+    }
+
+    private final ConcurrentHashMap<PageId, PageLock> table;
+    // page -> true if the lock is exclusive, for each transaction
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, Boolean>> held;
+    private final WaitsForGraph waits;
+
+    public LockManager() {
+        this.table = new ConcurrentHashMap<PageId, PageLock>();
+        this.held = new ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, Boolean>>();
+        this.waits = new WaitsForGraph(new WaitsForGraph.Cost() {
+            public int cost(TransactionId tid) {
+                return exclusiveCount(tid);
+            }
+        });
+    }
+
+    /**
+     * Acquire a lock on pid for tid, blocking while a conflicting lock is
+     * held by another transaction. READ_ONLY asks for a shared lock and
+     * READ_WRITE for an exclusive one; asking for a lock that is already
+     * held (or implied by a held lock) returns immediately.
+     *
+     * @param tid the transaction requesting the lock
+     * @param pid the page to lock
+     * @param perm the permissions the transaction needs on the page
+     * @throws TransactionAbortedException if tid was chosen as the victim
+     *   of a deadlock
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        boolean waited = false;
+        while (true) {
+            PageLock lock = lockFor(pid);
+            Object victim = null;
+            synchronized (lock) {
+                if (lock.retired)
+                    continue;
+                if (grant(lock, tid, exclusive)) {
+                    // only waiters ever touch the graph
+                    if (waited)
+                        waits.stopWaiting(tid);
+                    break;
+                }
+                if (waits.isDoomed(tid)) {
+                    waits.stopWaiting(tid);
+                    throw new TransactionAbortedException();
+                }
+                waited = true;
+                try {
+                    victim = waits.waitFor(tid, lock.holders, lock);
+                } catch (DeadlockException e) {
+                    throw new TransactionAbortedException();
+                }
+                if (victim == null) {
+                    lock.waiters++;
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        waits.stopWaiting(tid);
+                        throw new TransactionAbortedException();
+                    } finally {
+                        lock.waiters--;
+                    }
+                }
+            }
+            // wake the victim outside our own monitor so that no thread ever
+            // holds two page monitors at once
+            if (victim != null) {
+                synchronized (victim) {
+                    victim.notifyAll();
+                }
+            }
+        }
+        if (exclusive)
+            pagesOf(tid).put(pid, Boolean.TRUE);
+        else
+            pagesOf(tid).putIfAbsent(pid, Boolean.FALSE);
+    }
+
+    /** Return true if tid holds a shared or exclusive lock on pid. */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        ConcurrentHashMap<PageId, Boolean> pages = held.get(tid);
+        return pages != null && pages.containsKey(pid);
+    }
+
+    /** Return true if tid holds an exclusive lock on pid. */
+    public boolean holdsExclusive(TransactionId tid, PageId pid) {
+        PageLock lock = table.get(pid);
+        if (lock == null)
+            return false;
+        synchronized (lock) {
+            return lock.exclusive && lock.holders.contains(tid);
+        }
+    }
+
+    /**
+     * Release whatever lock tid holds on pid and wake up its waiters.
+     *
+     * @param tid the transaction releasing the lock
+     * @param pid the page to unlock
+     */
+    public void release(TransactionId tid, PageId pid) {
+        ConcurrentHashMap<PageId, Boolean> pages = held.get(tid);
+        if (pages != null)
+            pages.remove(pid);
+        unlock(tid, pid);
+    }
+
+    /**
+     * Release every lock held by tid.
+     *
+     * @param tid the transaction that finished
+     */
+    public void releaseAll(TransactionId tid) {
+        waits.remove(tid);
+        ConcurrentHashMap<PageId, Boolean> pages = held.remove(tid);
+        if (pages == null)
+            return;
+        for (PageId pid : pages.keySet())
+            unlock(tid, pid);
+    }
+
+    /**
+     * @return the pages tid currently holds locks on; the set is a live view
+     *   and should not be modified
+     */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        ConcurrentHashMap<PageId, Boolean> pages = held.get(tid);
+        if (pages == null)
+            return Collections.emptySet();
+        return Collections.unmodifiableSet(pages.keySet());
+    }
+
+    /** @return the number of exclusive locks tid holds */
+    private int exclusiveCount(TransactionId tid) {
+        ConcurrentHashMap<PageId, Boolean> pages = held.get(tid);
+        if (pages == null)
+            return 0;
+        int count = 0;
+        for (Boolean exclusive : pages.values()) {
+            if (exclusive)
+                count++;
+        }
+        return count;
+    }
+
+    /** Try to grant the lock; caller holds the monitor of lock. */
+    private boolean grant(PageLock lock, TransactionId tid, boolean exclusive) {
+        if (lock.holders.isEmpty()) {
+            lock.holders.add(tid);
+            lock.exclusive = exclusive;
+            return true;
+        }
+        if (lock.holders.contains(tid)) {
+            if (!exclusive || lock.exclusive)
+                return true;
+            // upgrade is only possible for the sole sharer
+            if (lock.holders.size() == 1) {
+                lock.exclusive = true;
+                return true;
+            }
+            return false;
+        }
+        if (!exclusive && !lock.exclusive) {
+            lock.holders.add(tid);
+            return true;
+        }
+        return false;
+    }
+
+    private void unlock(TransactionId tid, PageId pid) {
+        PageLock lock = table.get(pid);
+        if (lock == null)
+            return;
+        synchronized (lock) {
+            if (!lock.holders.remove(tid))
+                return;
+            if (lock.holders.isEmpty()) {
+                lock.exclusive = false;
+                if (lock.waiters == 0) {
+                    lock.retired = true;
+                    table.remove(pid, lock);
+                    return;
+                }
+            }
+            // a remaining sharer may be waiting to upgrade
+            if (lock.waiters > 0)
+                lock.notifyAll();
+        }
+    }
+
+    private PageLock lockFor(PageId pid) {
+        PageLock lock = table.get(pid);
+        if (lock == null) {
+            PageLock fresh = new PageLock();
+            lock = table.putIfAbsent(pid, fresh);
+            if (lock == null)
+                lock = fresh;
+        }
+        return lock;
+    }
+
+    private ConcurrentHashMap<PageId, Boolean> pagesOf(TransactionId tid) {
+        ConcurrentHashMap<PageId, Boolean> pages = held.get(tid);
+        if (pages == null) {
+            ConcurrentHashMap<PageId, Boolean> fresh = new ConcurrentHashMap<PageId, Boolean>();
+            pages = held.putIfAbsent(tid, fresh);
+            if (pages == null)
+                pages = fresh;
+        }
+        return pages;
+    }
+}
@@ -88,6 +88,7 @@ public class LogFile {
     final static int LONG_SIZE = 8;
 
     long currentOffset = -1;//protected by this
+    long forcedOffset = -1; // end of the log known to be on disk, protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
@@ -132,6 +133,8 @@ public class LogFile {
             raf.writeLong(NO_CHECKPOINT_ID);
             raf.seek(raf.length());
             currentOffset = raf.getFilePointer();
+            // the log was rewritten; none of it is known to be on disk
+            forcedOffset = -1;
         }
     }
 
@@ -450,6 +453,8 @@ public class LogFile {
         newFile.delete();
 
         currentOffset = raf.getFilePointer();
+        // offsets start over in the new file, which was never forced
+        forcedOffset = -1;
         //print();
     }
 
@@ -505,6 +510,22 @@ public class LogFile {
 
     public  synchronized void force() throws IOException {
         raf.getChannel().force(true);
+        forcedOffset = currentOffset;
+    }
+
+    /** @return the offset just past the last record appended to the log */
+    public synchronized long getCurrentOffset() {
+        return currentOffset;
+    }
+
+    /** Force the log to disk unless everything up to offset already is.
+        Pages whose updates were logged before offset may be written out
+        once this returns.
+        @param offset a value returned by {@link #getCurrentOffset}
+    */
+    public synchronized void forceTo(long offset) throws IOException {
+        if (offset > forcedOffset)
+            force();
     }
 
 }
@@ -12,9 +12,9 @@ import java.util.NoSuchElementException;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and a list of group by fields.
+ * All aggregates of a query are computed by a single Aggregate
+ * operator, grouped by all of the group by fields.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -29,18 +29,25 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    // the aggregates of the query, in the order they were added
+    private Vector<String> aggOps;
+    private Vector<String> aggFields;
+    // the ORDER BY fields, most significant first, and their orders
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAscs = new Vector<Boolean>();
+    // the LIMIT of the query, or -1 if it has none
+    private int limit = -1;
     private String query;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
         joins = new Vector<LogicalJoinNode>();
+        groupByFields = new Vector<String>();
+        aggOps = new Vector<String>();
+        aggFields = new Vector<String>();
         filters = new Vector<LogicalFilterNode>();
         tables = new Vector<LogicalScanNode>();
         subplanMap = new HashMap<String,DbIterator>();
@@ -105,6 +112,15 @@ public class LogicalPlan {
         filters.addElement(lf);
     }
 
+    /** @return true if the WHERE clause filters the table with the given alias */
+    boolean hasFilter(String alias) {
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(alias))
+                return true;
+        }
+        return false;
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -186,34 +202,82 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  May be called once for each aggregate expression in
+        the select list; adding the same aggregate twice has no effect.
+        COUNT may be taken over "*".
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield a field to group by, or null; see {@link #addGroupBy}
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
-        afield=disambiguateName(afield);
+        afield=aggregateName(op, afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupBy(gfield);
+        if (aggIndex(op, afield) < 0) {
+            aggOps.addElement(op);
+            aggFields.addElement(afield);
+        }
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a field to group the aggregates of the query by.  Adding the
+        same field twice has no effect.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    /** @return the disambiguated name of the field of an aggregate */
+    private String aggregateName(String op, String afield) throws ParsingException {
+        afield=disambiguateName(afield);
+        if (afield.equals("*") || afield.equals("null.*")) {
+            if (!op.equalsIgnoreCase("COUNT"))
+                throw new ParsingException(op + "(*) is not supported");
+            return "null.*";
+        }
+        return afield;
+    }
+
+    /** @return the position of an aggregate among those added, or -1 */
+    private int aggIndex(String op, String afield) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.elementAt(i).equalsIgnoreCase(op) && aggFields.elementAt(i).equals(afield))
+                return i;
+        }
+        return -1;
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  Tuples are
+        ordered by the fields in the order they are added, each breaking the ties of the ones before.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
-        hasOrderBy = true;
+        oByFields.addElement(field);
+        oByAscs.addElement(asc);
+    }
+
+    /** Return at most the specified number of tuples, the first ones in the ORDER BY
+        order if there is one.
+        @param limit the number of tuples to return at most
+     * @throws ParsingException if limit is negative
+    */
+    public void setLimit(int limit) throws ParsingException {
+        if (limit < 0)
+            throw new ParsingException("LIMIT must not be negative");
+        this.limit = limit;
+    }
+
+    /** @return the number of tuples to return at most, or -1 if there is no LIMIT */
+    public int getLimit() {
+        return limit;
     }
 
     /** Given a name of a field, try to figure out what table it belongs to by looking
@@ -289,6 +353,13 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        // estimated cardinality of each subplan, or -1 if unknown
+        HashMap<String,Integer> cardMap = new HashMap<String,Integer>();
+        // the filters of each table, and the one, if any, that a search of
+        // the table's B+ tree answers more cheaply than a scan, with its cost
+        HashMap<String,Vector<Predicate>> filterMap = new HashMap<String,Vector<Predicate>>();
+        HashMap<String,Predicate> indexFilters = new HashMap<String,Predicate>();
+        HashMap<String,Double> indexCosts = new HashMap<String,Double>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -334,16 +405,53 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (filterMap.get(lf.tableAlias) == null)
+                filterMap.put(lf.tableAlias, new Vector<Predicate>());
+            filterMap.get(lf.tableAlias).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
             double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
+            DbFile file = Database.getCatalog().getDatabaseFile(this.getTableId(lf.tableAlias));
+            if (file instanceof BTreeFile && ((BTreeFile) file).keyField() == p.getField()
+                    && IndexPredicate.isSupported(lf.p)) {
+                double cost = s.estimateIndexScanCost(sel);
+                Double best = indexCosts.get(lf.tableAlias);
+                if (cost < (best == null ? s.estimateScanCost() : best)) {
+                    indexFilters.put(lf.tableAlias, p);
+                    indexCosts.put(lf.tableAlias, cost);
+                }
+            }
+
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
+        // scan each table, by a search of its B+ tree if that is cheaper,
+        // and apply the filters that the search does not
+        for (LogicalScanNode table : tables) {
+            DbIterator subplan = subplanMap.get(table.alias);
+            Predicate indexFilter = indexFilters.get(table.alias);
+            if (indexFilter != null) {
+                subplan = new BTreeScan(t, table.t, table.alias, new IndexPredicate(
+                        indexFilter.getOp(), indexFilter.getOperand()));
+            }
+            if (filterMap.get(table.alias) != null) {
+                for (Predicate p : filterMap.get(table.alias)) {
+                    if (p != indexFilter)
+                        subplan = new Filter(p, subplan);
+                }
+            }
+            subplanMap.put(table.alias, subplan);
+        }
+
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            cardMap.put(table.alias, s == null ? -1
+                    : s.estimateTableCardinality(filterSelectivities.get(table.alias)));
+        }
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
@@ -381,9 +489,20 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
+            int card1 = cardMap.get(t1name);
+            int card2 = isSubqueryJoin ? -1 : cardMap.get(t2name);
             DbIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2);
+            j = JoinOptimizer.instantiateJoin(lj,plan1,plan2,card1,card2);
             subplanMap.put(t1name, j);
+            if (isSubqueryJoin) {
+                cardMap.put(t1name, card1);
+            } else if (card1 < 0 || card2 < 0) {
+                cardMap.put(t1name, -1);
+            } else {
+                cardMap.put(t1name, jo.estimateJoinCardinality(lj, card1, card2,
+                        jo.isPkey(lj.t1Alias, lj.f1PureName),
+                        jo.isPkey(lj.t2Alias, lj.f2PureName), statsMap));
+            }
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
@@ -414,28 +533,25 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
-                TupleDesc td = node.getTupleDesc();
-//                int  id;
-                try {
-//                    id = 
-                    td.fieldNameToIndex(si.fname);
-                } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                int agg = aggIndex(si.aggOp, si.fname);
+                if (agg < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the plan");
                 }
+                outFields.add(groupByFields.size() + agg);
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -462,10 +578,19 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++) {
+                    gfields[i] = td.fieldNameToIndex(groupByFields.elementAt(i));
+                }
+                int[] afields = new int[aggOps.size()];
+                Aggregator.Op[] ops = new Aggregator.Op[afields.length];
+                for (int i = 0; i < afields.length; i++) {
+                    // COUNT(*) counts the values of any field
+                    String f = aggFields.elementAt(i);
+                    afields[i] = f.equals("null.*") ? 0 : td.fieldNameToIndex(f);
+                    ops[i] = getAggOp(aggOps.elementAt(i));
+                }
+                aggNode = new Aggregate(node, gfields, afields, ops);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -474,8 +599,20 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        // with a LIMIT, only the first tuples in order are kept, not all of them sorted
+        boolean hasOrderBy = !oByFields.isEmpty();
+        int[] oByIndexes = new int[oByFields.size()];
+        boolean[] oByOrders = new boolean[oByFields.size()];
+        for (int i = 0; i < oByIndexes.length; i++) {
+            oByIndexes[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+            oByOrders[i] = oByAscs.get(i);
+        }
+        if (hasOrderBy && limit >= 0) {
+            node = new TopN(oByIndexes, oByOrders, limit, node);
+        } else if (hasOrderBy) {
+            node = new OrderBy(oByIndexes, oByOrders, node);
+        } else if (limit >= 0) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). Each page remembers the
+ * logical times of its last K references, and the victim is the page whose
+ * K-th most recent reference lies furthest in the past. Pages referenced
+ * fewer than K times count as infinitely old and go first, oldest last
+ * reference first, so a page touched once by a scan never pushes out a page
+ * that is looked up over and over.
+ * <p>
+ * The history of evicted pages is retained for a while, so a page that comes
+ * back soon after eviction is immediately recognised as hot again.
+ * <p>
+ * A hit only locks the history of the page it touches, so concurrent hits
+ * on different pages do not contend; adding, removing and choosing pages
+ * lock the whole policy.
+ *
+ * @Threadsafe
+ */
+public class LruKEvictionPolicy implements EvictionPolicy {
+
+    /** Default K; LRU-2 already captures most of the benefit. */
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    /** access history of resident pages; each history is guarded by itself */
+    private final ConcurrentHashMap<PageId, long[]> resident;
+    /** access history of recently evicted pages */
+    private final LinkedHashMap<PageId, long[]> retained;
+    private final AtomicLong clock;
+
+    /**
+     * Creates an LRU-K policy.
+     *
+     * @param numPages the number of pages in the buffer pool; this many
+     *   evicted page histories are retained as well
+     * @param k the number of references remembered per page
+     */
+    public LruKEvictionPolicy(final int numPages, int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be at least 1");
+        this.k = k;
+        this.resident = new ConcurrentHashMap<PageId, long[]>(numPages);
+        this.retained = new LinkedHashMap<PageId, long[]>(numPages, 0.75f, false) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageId, long[]> eldest) {
+                return size() > numPages;
+            }
+        };
+        this.clock = new AtomicLong();
+    }
+
+    /** Creates an LRU-2 policy for a buffer pool of numPages pages. */
+    public LruKEvictionPolicy(int numPages) {
+        this(numPages, DEFAULT_K);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        long[] history = resident.get(pid);
+        if (history == null) {
+            history = retained.remove(pid);
+            if (history == null)
+                history = new long[k];
+            resident.put(pid, history);
+        }
+        reference(history);
+    }
+
+    public void pageAccessed(PageId pid) {
+        long[] history = resident.get(pid);
+        if (history != null)
+            reference(history);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        long[] history = resident.remove(pid);
+        if (history != null)
+            retained.put(pid, history);
+    }
+
+    public synchronized PageId chooseVictim(Candidates candidates) {
+        PageId victim = null;
+        long victimKth = Long.MAX_VALUE;
+        long victimLast = Long.MAX_VALUE;
+        for (Map.Entry<PageId, long[]> e : resident.entrySet()) {
+            long[] history = e.getValue();
+            long kth, last;
+            // history[0] is the most recent reference, 0 means "never"
+            synchronized (history) {
+                kth = history[k - 1];
+                last = history[0];
+            }
+            if (kth < victimKth || (kth == victimKth && last < victimLast)) {
+                if (!candidates.isEvictable(e.getKey()))
+                    continue;
+                victim = e.getKey();
+                victimKth = kth;
+                victimLast = last;
+            }
+        }
+        return victim;
+    }
+
+    /** Shift a new reference time into the front of history. */
+    private void reference(long[] history) {
+        synchronized (history) {
+            System.arraycopy(history, 0, history, 1, k - 1);
+            history[0] = clock.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * MappedFileReader serves page reads for a DbFile from a read-only memory
+ * mapping of the whole file. A page read is a single bulk copy out of the
+ * OS page cache with no system call, which suits read-mostly tables: pages
+ * evicted from the BufferPool stay cheap to get back as long as the OS still
+ * caches them.
+ * <p>
+ * Pages are still written through {@link FileChannelPool}; the mapping is
+ * shared with the page cache, so those writes are visible to later reads.
+ * When a read falls past the end of the current mapping (because the file
+ * grew), the file is mapped again at its new size. Only the first 2GB of a
+ * file can be mapped; pages beyond that are read with positional reads.
+ *
+ * @Threadsafe
+ */
+public class MappedFileReader {
+
+    private final File f;
+    private volatile MappedByteBuffer map;
+
+    /**
+     * Creates a reader for f. The mapping is created on the first read.
+     *
+     * @param f the file to map
+     */
+    public MappedFileReader(File f) {
+        this.f = f;
+        this.map = null;
+    }
+
+    /**
+     * Fill dst with the bytes of the file starting at offset.
+     *
+     * @param offset the file offset of the first byte
+     * @param dst the array to fill
+     * @return false if the file is shorter than offset + dst.length
+     * @throws IOException if the file cannot be mapped
+     */
+    public boolean read(long offset, byte[] dst) throws IOException {
+        long end = offset + dst.length;
+        if (end > Integer.MAX_VALUE)
+            return FileChannelPool.read(f, ByteBuffer.wrap(dst), offset) == dst.length;
+        MappedByteBuffer m = map;
+        if (m == null || end > m.capacity())
+            m = remap(end);
+        if (m == null)
+            return false;
+        // duplicate so concurrent readers do not share a position
+        ByteBuffer b = m.duplicate();
+        b.position((int) offset);
+        b.get(dst);
+        return true;
+    }
+
+    /**
+     * Map the file again if it is now at least needed bytes long.
+     * @return the current mapping, or null if it does not cover needed bytes
+     */
+    private synchronized MappedByteBuffer remap(long needed) throws IOException {
+        if (map != null && needed <= map.capacity())
+            return map;
+        MappedByteBuffer m = FileChannelPool.map(f, needed);
+        if (m != null)
+            map = m;
+        return m;
+    }
+}
@@ -27,7 +27,23 @@ public class OperatorCardinality {
         } else if (o instanceof Join) {
             return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
-            return updateHashEquiJoinCardinality((HashEquiJoin) o,
+            HashEquiJoin j = (HashEquiJoin) o;
+            return updateEquiJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) o;
+            return updateEquiJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof IndexNestedLoopJoin) {
+            IndexNestedLoopJoin j = (IndexNestedLoopJoin) o;
+            return updateEquiJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof Limit || o instanceof TopN) {
+            return updateLimitCardinality(o,
+                    o instanceof Limit ? ((Limit) o).getLimit() : ((TopN) o).getLimit(),
                     tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
@@ -41,10 +57,9 @@ public class OperatorCardinality {
                     hasJoinPK = updateOperatorCardinality(
                             (Operator) children[0], tableAliasToId, tableStats);
                     childC = ((Operator) children[0]).getEstimatedCardinality();
-                } else if (children[0] instanceof SeqScan) {
-                    childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
-                            .estimateTableCardinality(1.0);
+                } else if (children[0] instanceof SeqScan
+                        || children[0] instanceof BTreeScan) {
+                    childC = scanCardinality(children[0], tableStats);
                 }
             }
             o.setEstimatedCardinality(childC);
@@ -52,6 +67,30 @@ public class OperatorCardinality {
         }
     }
 
+    /**
+     * @return the estimated cardinality of a SeqScan or BTreeScan of a base
+     *         table, with the selectivity of the index predicate it searches
+     *         a B+ tree for, if any
+     */
+    private static int scanCardinality(DbIterator scan,
+            Map<String, TableStats> tableStats) {
+        if (scan instanceof BTreeScan) {
+            BTreeScan s = (BTreeScan) scan;
+            TableStats stats = tableStats.get(s.getTableName());
+            IndexPredicate ipred = s.getIndexPredicate();
+            double selectivity = 1.0;
+            if (ipred != null) {
+                int keyField = ((BTreeFile) Database.getCatalog()
+                        .getDatabaseFile(s.getTableId())).keyField();
+                selectivity = stats.estimateSelectivity(keyField,
+                        ipred.getOp(), ipred.getField());
+            }
+            return stats.estimateTableCardinality(selectivity);
+        }
+        return tableStats.get(((SeqScan) scan).getTableName())
+                .estimateTableCardinality(1.0);
+    }
+
     private static boolean updateFilterCardinality(Filter f,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -77,10 +116,9 @@ public class OperatorCardinality {
                 f.setEstimatedCardinality((int) (oChild
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
-            } else if (child instanceof SeqScan) {
-                f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
-                        .estimateTableCardinality(1.0) * selectivity) + 1);
+            } else if (child instanceof SeqScan || child instanceof BTreeScan) {
+                f.setEstimatedCardinality((int) (scanCardinality(child,
+                        tableStats) * selectivity) + 1);
                 return false;
             }
         }
@@ -120,9 +158,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (child1 instanceof SeqScan || child1 instanceof BTreeScan) {
+            child1Card = scanCardinality(child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -132,9 +169,8 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (child2 instanceof SeqScan || child2 instanceof BTreeScan) {
+            child2Card = scanCardinality(child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -144,7 +180,8 @@ public class OperatorCardinality {
         return child1HasJoinPK || child2HasJoinPK;
     }
 
-    private static boolean updateHashEquiJoinCardinality(HashEquiJoin j,
+    private static boolean updateEquiJoinCardinality(Operator j,
+            JoinPredicate p, String joinField1Name, String joinField2Name,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
 
@@ -154,10 +191,10 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = joinField1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = joinField2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -177,9 +214,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (child1 instanceof SeqScan || child1 instanceof BTreeScan) {
+            child1Card = scanCardinality(child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -189,18 +225,34 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (child2 instanceof SeqScan || child2 instanceof BTreeScan) {
+            child2Card = scanCardinality(child2, tableStats);
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(
+                p.getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
     }
 
+    private static boolean updateLimitCardinality(Operator o, int limit,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        DbIterator child = o.getChildren()[0];
+        int childCard = 1;
+        boolean hasJoinPK = false;
+        if (child instanceof Operator) {
+            hasJoinPK = updateOperatorCardinality((Operator) child,
+                    tableAliasToId, tableStats);
+            childCard = ((Operator) child).getEstimatedCardinality();
+        } else if (child instanceof SeqScan || child instanceof BTreeScan) {
+            childCard = scanCardinality(child, tableStats);
+        }
+        o.setEstimatedCardinality(Math.min(childCard, limit));
+        return hasJoinPK;
+    }
+
     private static boolean updateAggregateCardinality(Aggregate a,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -219,29 +271,32 @@ public class OperatorCardinality {
             return hasJoinPK;
         }
 
-        if (child instanceof SeqScan) {
-            childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
-                    .estimateTableCardinality(1.0));
+        if (child instanceof SeqScan || child instanceof BTreeScan) {
+            childCard = scanCardinality(child, tableStats);
         }
 
-        String[] tmp = a.groupFieldName().split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
-
-        double groupFieldAvgSelectivity = 1.0;
-        if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
+        // the number of groups is at most the product of the numbers of
+        // distinct values of the group by fields
+        double groups = 1.0;
+        TupleDesc childTd = child.getTupleDesc();
+        for (int gfield : a.groupFields()) {
+            String[] tmp = childTd.getFieldName(gfield).split("[.]");
+            String tableAlias = tmp[0];
+            String pureFieldName = tmp[1];
+            Integer tableId = tableAliasToId.get(tableAlias);
+            if (tableId == null) {
+                a.setEstimatedCardinality(childCard);
+                return hasJoinPK;
+            }
+            double groupFieldAvgSelectivity = tableStats.get(
                     Database.getCatalog().getTableName(tableId))
                     .avgSelectivity(
                             Database.getCatalog().getTupleDesc(tableId)
                                     .fieldNameToIndex(pureFieldName),
                             Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
-            return hasJoinPK;
+            groups *= 1.0 / groupFieldAvgSelectivity;
         }
-        a.setEstimatedCardinality(childCard);
+        a.setEstimatedCardinality((int) (Math.min(childCard, groups)));
         return hasJoinPK;
     }
 }
@@ -1,20 +1,28 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY. It sorts
+ * with an {@link ExternalSort}, so a child larger than the sort memory is
+ * spilled to disk in sorted runs and merged rather than held in the heap.
+ * Tuples with equal sort keys come out in the order the child returned them.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of tuples the sort holds in memory */
+    public static final int DEFAULT_SORT_TUPLES = 1 << 16;
+
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
     private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private int sortTuples = DEFAULT_SORT_TUPLES;
+    private transient ExternalSort sort;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,27 +35,67 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields: by the first,
+     * then tuples equal in it by the second, and so on.
+     * 
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if its sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one sort order per ORDER BY field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = asc.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
     }
-    
+
+    /** @return true if the sort order of the first field is ascending */
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascs[0];
     }
     
+    /** @return the first field the sort is applied to */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
+
+    /** @return all the fields the sort is applied to, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for each sort field, true if its order is ascending */
+    public boolean[] getAscs() {
+        return ascs.clone();
+    }
+
+    /**
+     * Sets the number of tuples the sort holds in memory; a larger child is
+     * sorted in runs on disk.
+     */
+    public void setSortTuples(int sortTuples) {
+        if (sortTuples < 1)
+            throw new IllegalArgumentException("sortTuples must be positive");
+        this.sortTuples = sortTuples;
+    }
     
     public TupleDesc getTupleDesc() {
         return td;
@@ -56,21 +104,38 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        // every open sorts the child again, into a fresh sort
+        if (sort != null)
+            sort.close();
+        sort = new ExternalSort(td, new TupleComparator(orderByFields, ascs), sortTuples);
+        try {
+            while (child.hasNext())
+                sort.add(child.next());
+            sort.finish();
+        } catch (IOException e) {
+            sort.close();
+            sort = null;
+            throw new DbException("could not sort: " + e.getMessage());
+        }
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        child.close();
+        if (sort != null)
+            sort.close();
+        sort = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (sort == null)
+            return;
+        try {
+            sort.rewind();
+        } catch (IOException e) {
+            throw new DbException("could not rewind sort: " + e.getMessage());
+        }
     }
 
     /**
@@ -82,10 +147,13 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
+        if (sort == null)
             return null;
+        try {
+            return sort.next();
+        } catch (IOException e) {
+            throw new DbException("could not read sort: " + e.getMessage());
+        }
     }
 
     @Override
@@ -99,25 +167,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
@@ -0,0 +1,155 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * PageCleaner group-flushes dirty pages: it does not clean pages ahead of
+ * time, but writes the pages callers hand it on one writer thread. Each
+ * caller blocks until its own batch is on disk; whatever batches pile up
+ * while a write is in progress are merged into the next pass, so
+ * concurrently committing transactions share their I/O.
+ * <p>
+ * Every pass sorts its pages by (table, page number), so each file is
+ * written front to back and runs of adjacent pages go out as single
+ * gathering writes through {@link DbFile#writePages}. Each caller forces
+ * the log before handing its batch in, so a page never reaches disk ahead
+ * of the log records describing it. The force happens on the caller's
+ * thread because callers such as checkpoints hold the LogFile's monitor
+ * while they wait for their pages; the writer thread never takes it.
+ *
+ * @Threadsafe
+ */
+public class PageCleaner {
+
+    /** Orders pages by table, then by position in the table's file. */
+    private static final Comparator<PageId> FILE_ORDER = new Comparator<PageId>() {
+        public int compare(PageId a, PageId b) {
+            if (a.getTableId() != b.getTableId())
+                return a.getTableId() < b.getTableId() ? -1 : 1;
+            return Integer.compare(a.pageNumber(), b.pageNumber());
+        }
+    };
+
+    /** Pages handed in by one caller. */
+    private static class Batch {
+        final Collection<Page> pages;
+        boolean done = false;
+        IOException error = null;
+
+        Batch(Collection<Page> pages) {
+            this.pages = pages;
+        }
+    }
+
+    // guarded by this
+    private final ArrayList<Batch> pending;
+    private Thread thread;
+
+    public PageCleaner() {
+        this.pending = new ArrayList<Batch>();
+        this.thread = null;
+    }
+
+    /**
+     * Write pages to disk, blocking until they are written. The caller is
+     * responsible for marking them clean afterwards.
+     *
+     * @param pages the pages to write
+     * @throws IOException if any write of the pass fails
+     */
+    public void write(Collection<Page> pages) throws IOException {
+        if (pages.isEmpty())
+            return;
+        LogFile log = Database.getLogFile();
+        log.forceTo(log.getCurrentOffset());
+        Batch batch = new Batch(pages);
+        synchronized (this) {
+            pending.add(batch);
+            if (thread == null) {
+                thread = new Thread(new Runnable() {
+                    public void run() {
+                        cleanLoop();
+                    }
+                }, "simpledb-page-cleaner");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            notifyAll();
+        }
+        synchronized (batch) {
+            boolean interrupted = false;
+            while (!batch.done) {
+                try {
+                    batch.wait();
+                } catch (InterruptedException e) {
+                    // the pages are on their way; keep waiting for them
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (batch.error != null)
+                throw batch.error;
+        }
+    }
+
+    private void cleanLoop() {
+        while (true) {
+            ArrayList<Batch> batches;
+            synchronized (this) {
+                while (pending.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // daemon thread; nothing to shut down
+                    }
+                }
+                batches = new ArrayList<Batch>(pending);
+                pending.clear();
+            }
+            IOException error = null;
+            try {
+                writeBatches(batches);
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException(e);
+            }
+            for (Batch b : batches) {
+                synchronized (b) {
+                    b.error = error;
+                    b.done = true;
+                    b.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Write every page of batches once, in file order. */
+    private void writeBatches(List<Batch> batches) throws IOException {
+        TreeMap<PageId, Page> sorted = new TreeMap<PageId, Page>(FILE_ORDER);
+        for (Batch b : batches) {
+            for (Page p : b.pages)
+                sorted.put(p.getId(), p);
+        }
+
+        ArrayList<Page> run = new ArrayList<Page>();
+        int tableId = 0;
+        for (Map.Entry<PageId, Page> e : sorted.entrySet()) {
+            if (!run.isEmpty() && e.getKey().getTableId() != tableId) {
+                Database.getCatalog().getDatabaseFile(tableId).writePages(run);
+                run.clear();
+            }
+            tableId = e.getKey().getTableId();
+            run.add(e.getValue());
+        }
+        if (!run.isEmpty())
+            Database.getCatalog().getDatabaseFile(tableId).writePages(run);
+    }
+}
@@ -107,6 +107,57 @@ public class Predicate implements Serializable {
     	return tField.compare(getOp(), predOperand);
     }
 
+    /**
+     * Narrows the selection of a batch to the rows that pass this predicate.
+     * Integer columns are compared straight from their int vector.
+     *
+     * @param batch
+     *            The rows to filter
+     */
+    public void filter(TupleBatch batch) {
+        int[] sel = batch.getSelection();
+        int n = batch.size();
+        int kept = 0;
+        if (batch.getTupleDesc().getFieldType(predField) == Type.INT_TYPE
+                && predOperand instanceof IntField) {
+            int[] col = batch.getIntColumn(predField);
+            int v = ((IntField) predOperand).getValue();
+            // one tight loop per operator
+            switch (predOp) {
+            case EQUALS:
+            case LIKE:
+                for (int i = 0; i < n; i++)
+                    if (col[sel[i]] == v) sel[kept++] = sel[i];
+                break;
+            case NOT_EQUALS:
+                for (int i = 0; i < n; i++)
+                    if (col[sel[i]] != v) sel[kept++] = sel[i];
+                break;
+            case GREATER_THAN:
+                for (int i = 0; i < n; i++)
+                    if (col[sel[i]] > v) sel[kept++] = sel[i];
+                break;
+            case GREATER_THAN_OR_EQ:
+                for (int i = 0; i < n; i++)
+                    if (col[sel[i]] >= v) sel[kept++] = sel[i];
+                break;
+            case LESS_THAN:
+                for (int i = 0; i < n; i++)
+                    if (col[sel[i]] < v) sel[kept++] = sel[i];
+                break;
+            case LESS_THAN_OR_EQ:
+                for (int i = 0; i < n; i++)
+                    if (col[sel[i]] <= v) sel[kept++] = sel[i];
+                break;
+            }
+        } else {
+            for (int i = 0; i < n; i++)
+                if (batch.getField(predField, sel[i]).compare(predOp, predOperand))
+                    sel[kept++] = sel[i];
+        }
+        batch.select(kept);
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string
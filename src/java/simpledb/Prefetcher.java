@@ -0,0 +1,128 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Prefetcher reads pages ahead of a sequential scan on a background thread
+ * and stages them in the BufferPool, so that the scan's own I/O overlaps
+ * with the processing of the tuples it already has.
+ * <p>
+ * The scan reports each page it moves to with {@link #advance}. Whenever
+ * fewer than half of the read-ahead window lie ahead of the scan, a
+ * background task follows the {@link Successor} links from the last staged
+ * page until the window is full again. Prefetching is only a hint: a page
+ * that cannot be staged ends the task, and the scan then reads it itself.
+ *
+ * @Threadsafe
+ */
+public class Prefetcher {
+
+    /** Tells the prefetcher which page a scan reads after a given page. */
+    public interface Successor {
+        /** @return the page read after page, or null at the end of the scan */
+        public PageId next(Page page);
+    }
+
+    private static final ExecutorService executor =
+        Executors.newFixedThreadPool(2, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-prefetch");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private final BufferPool pool;
+    private final Successor successor;
+    private final int depth;
+    // pages staged ahead of the scan, in scan order; guarded by this
+    private final ArrayList<PageId> staged;
+    private boolean running;
+    private volatile boolean closed;
+
+    /**
+     * Creates a prefetcher for a scan through the current BufferPool.
+     *
+     * @param successor the order in which the scan reads pages
+     */
+    public Prefetcher(Successor successor) {
+        this.pool = Database.getBufferPool();
+        this.successor = successor;
+        this.depth = pool.getPrefetchDepth();
+        this.staged = new ArrayList<PageId>();
+        this.running = false;
+        this.closed = false;
+    }
+
+    /**
+     * Tell the prefetcher that the scan has moved to page, and start reading
+     * further ahead if the scan is getting close to the last staged page.
+     *
+     * @param page the page the scan is now reading
+     * @return the read-ahead task that was started, or null if none was
+     */
+    public synchronized Future<?> advance(Page page) {
+        if (depth == 0 || closed || running)
+            return null;
+        int at = staged.indexOf(page.getId());
+        Page from = null;
+        PageId fromId;
+        if (at < 0) {
+            // the scan got ahead of us, or is just starting
+            staged.clear();
+            from = page;
+            fromId = page.getId();
+        } else {
+            int ahead = staged.size() - at - 1;
+            staged.subList(0, at + 1).clear();
+            if (ahead * 2 >= depth)
+                return null;
+            fromId = ahead == 0 ? page.getId() : staged.get(ahead - 1);
+            if (ahead == 0)
+                from = page;
+        }
+        running = true;
+        return submit(from, fromId, depth - staged.size());
+    }
+
+    /** Stop reading ahead; pages already staged stay in the BufferPool. */
+    public void close() {
+        closed = true;
+    }
+
+    private Future<?> submit(final Page from, final PageId fromId, final int count) {
+        return executor.submit(new Runnable() {
+            public void run() {
+                try {
+                    readAhead(from, fromId, count);
+                } catch (RuntimeException e) {
+                    // the table may have gone away under a finished scan
+                    Debug.log(1, "Prefetcher: giving up after %s", e);
+                } finally {
+                    synchronized (Prefetcher.this) {
+                        running = false;
+                    }
+                }
+            }
+        });
+    }
+
+    private void readAhead(Page from, PageId fromId, int count) {
+        Page page = from != null ? from : pool.prefetchPage(fromId);
+        for (int i = 0; i < count && page != null && !closed; i++) {
+            PageId next = successor.next(page);
+            if (next == null)
+                return;
+            page = pool.prefetchPage(next);
+            if (page == null)
+                return;
+            synchronized (this) {
+                staged.add(next);
+            }
+        }
+    }
+}
@@ -3,14 +3,17 @@ package simpledb;
 import java.util.*;
 
 /**
- * Project is an operator that implements a relational projection.
+ * Project is an operator that implements a relational projection. Batches
+ * are projected without copying by picking out the child's column vectors.
  */
-public class Project extends Operator {
+public class Project extends BatchOperator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
+    private BatchIterator input;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    private int[] cols;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -31,7 +34,11 @@ public class Project extends Operator {
     public Project(ArrayList<Integer> fieldList, Type[] types,
             DbIterator child) {
         this.child = child;
+        this.input = BatchAdapter.wrap(child);
         outFieldIds = fieldList;
+        cols = new int[fieldList.size()];
+        for (int i = 0; i < cols.length; i++)
+            cols[i] = fieldList.get(i);
         String[] fieldAr = new String[fieldList.size()];
         TupleDesc childtd = child.getTupleDesc();
 
@@ -57,27 +64,20 @@ public class Project extends Operator {
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
         child.rewind();
     }
 
     /**
-     * Operator.fetchNext implementation. Iterates over tuples from the child
-     * operator, projecting out the fields from the tuple
+     * BatchOperator.fetchNextBatch implementation. Reads batches from the
+     * child operator, projecting out the columns of each
      * 
-     * @return The next tuple, or null if there are no more tuples
+     * @return The next batch, or null if there are no more tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException,
+    protected TupleBatch fetchNextBatch() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        while (child.hasNext()) {
-            Tuple t = child.next();
-            Tuple newTuple = new Tuple(td);
-            newTuple.setRecordId(t.getRecordId());
-            for (int i = 0; i < td.numFields(); i++) {
-                newTuple.setField(i, t.getField(outFieldIds.get(i)));
-            }
-            return newTuple;
-        }
-        return null;
+        TupleBatch batch = input.nextBatch();
+        return batch == null ? null : batch.project(td, cols);
     }
 
     @Override
@@ -90,6 +90,7 @@ public class Project extends Operator {
 	if (this.child!=children[0])
 	{
 	    this.child = children[0];
+	    this.input = BatchAdapter.wrap(child);
 	}
     }
     
@@ -9,12 +9,16 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String MERGE_JOIN = "⨝(merge)";
+    static final String INDEX_JOIN = "⨝(index)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "index scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
+    static final String LIMIT = "limit";
     static final String SPACE = "  ";
 
     private int calculateQueryPlanTreeDepth(DbIterator root) {
@@ -26,7 +30,8 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         DbIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof SortMergeJoin
+                || o instanceof IndexNestedLoopJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -65,24 +70,32 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
-//            TupleDesc td = s.getTupleDesc();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof BTreeScan) {
+            String scan, tableName, alias;
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                scan = SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else {
+                BTreeScan s = (BTreeScan) queryPlan;
+                scan = INDEX_SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            }
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+                    .format("%1$s(%2$s)", scan, tableName + alias);
+            if (scan.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scan.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scan.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
@@ -136,18 +149,29 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
+            } else if (plan instanceof HashEquiJoin || plan instanceof SortMergeJoin
+                    || plan instanceof IndexNestedLoopJoin) {
+                String name;
+                JoinPredicate jp;
+                if (plan instanceof HashEquiJoin) {
+                    name = HASH_JOIN;
+                    jp = ((HashEquiJoin) plan).getJoinPredicate();
+                } else if (plan instanceof SortMergeJoin) {
+                    name = MERGE_JOIN;
+                    jp = ((SortMergeJoin) plan).getJoinPredicate();
+                } else {
+                    name = INDEX_JOIN;
+                    jp = ((IndexNestedLoopJoin) plan).getJoinPredicate();
+                }
+                TupleDesc td = plan.getTupleDesc();
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", name, field1
+                        + jp.getOperator() + field2,plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
+                if (name.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = name.length() / 2;
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + 3 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
@@ -156,7 +180,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
+                        - name.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -170,16 +194,22 @@ public class QueryPlanVisualizer {
                 int upBarShift = parentUpperBarStartShift;
                 String alignTxt;
                 TupleDesc td = a.getTupleDesc();
-                int gfield = a.groupField();
+                int[] gfields = a.groupFields();
+                // the aggregate columns follow the group by columns
+                String aggs = td.getFieldName(gfields.length);
+                for (int i = gfields.length + 1; i < td.numFields(); i++)
+                    aggs += ", " + td.getFieldName(i);
 
-                if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                if (gfields.length == 0) {
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(00);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    String groups = td.getFieldName(0);
+                    for (int i = 1; i < gfields.length; i++)
+                        groups += ", " + td.getFieldName(i);
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, groups, aggs, a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -217,22 +247,39 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof OrderBy) {
-                OrderBy o = (OrderBy) plan;
-                thisNode.text = String.format(
-                        "%1$s(%2$s),card:%3$d",
-                        ORDERBY,
-                        children[0].getTupleDesc().getFieldName(
-                                o.getOrderByField()),o.getEstimatedCardinality());
+            } else if (plan instanceof OrderBy || plan instanceof TopN
+                    || plan instanceof Limit) {
+                String name;
+                if (plan instanceof OrderBy) {
+                    name = ORDERBY;
+                    thisNode.text = String.format(
+                            "%1$s(%2$s),card:%3$d",
+                            ORDERBY,
+                            fieldNames(children[0].getTupleDesc(),
+                                    ((OrderBy) plan).getOrderByFields()),plan.getEstimatedCardinality());
+                } else if (plan instanceof TopN) {
+                    TopN o = (TopN) plan;
+                    name = ORDERBY;
+                    thisNode.text = String.format(
+                            "%1$s(%2$s),%3$s %4$d,card:%5$d",
+                            ORDERBY,
+                            fieldNames(children[0].getTupleDesc(),
+                                    o.getOrderByFields()), LIMIT, o.getLimit(),
+                            o.getEstimatedCardinality());
+                } else {
+                    name = LIMIT;
+                    thisNode.text = String.format("%1$s(%2$d),card:%3$d",
+                            LIMIT, ((Limit) plan).getLimit(), plan.getEstimatedCardinality());
+                }
                 int upBarShift = parentUpperBarStartShift;
-                if (ORDERBY.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = ORDERBY.length() / 2;
+                if (name.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = name.length() / 2;
                 SubTreeDescriptor child = this.buildTree(queryPlanDepth,
                         currentDepth + 2 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
                 thisNode.upBarPosition = child.upBarPosition;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - ORDERBY.length() / 2;
+                        - name.length() / 2;
                 thisNode.width = Math.max(child.width,
                         thisNode.textStartPosition + thisNode.text.length()
                                 - currentStartPosition);
@@ -334,6 +381,17 @@ public class QueryPlanVisualizer {
         return thisNode;
     }
 
+    /** @return the names of the fields, separated by commas */
+    private static String fieldNames(TupleDesc td, int[] fields) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(",");
+            sb.append(td.getFieldName(fields[i]));
+        }
+        return sb.toString();
+    }
+
     private void printTree(SubTreeDescriptor root, char[] buffer, int width) {
         if (root == null)
             return;
@@ -5,15 +5,16 @@ import java.util.*;
 /**
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
- * disk).
+ * disk). Scans of heap files return batches decoded straight from the pages.
  */
-public class SeqScan implements DbIterator {
+public class SeqScan implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
     private TransactionId transid;
     private int tbid;
     private String alias;
     private DbFileIterator dbfiterator;
+    private transient TupleBatch batch;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -57,6 +58,13 @@ public class SeqScan implements DbIterator {
         return this.alias;
     }
 
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return this.transid;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      * @param tableid
@@ -74,6 +82,7 @@ public class SeqScan implements DbIterator {
     	this.tbid = tableid;
     	this.alias = tableAlias;
     	this.dbfiterator = null;
+    	this.batch = null;
     }
 
     public SeqScan(TransactionId tid, int tableid) {
@@ -122,6 +131,21 @@ public class SeqScan implements DbIterator {
     	throw new NoSuchElementException();
     }
 
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (dbfiterator == null)
+            throw new IllegalStateException("SeqScan not yet open");
+        if (batch == null)
+            batch = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+        batch.clear();
+        if (dbfiterator instanceof HeapFile.HfIterator) {
+            ((HeapFile.HfIterator) dbfiterator).fillBatch(batch);
+        } else {
+            while (!batch.isFull() && dbfiterator.hasNext())
+                batch.addTuple(dbfiterator.next());
+        }
+        return batch.size() == 0 ? null : batch;
+    }
+
     public void close() {
         // some code goes here
     	dbfiterator.close();;
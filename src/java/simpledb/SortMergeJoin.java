@@ -0,0 +1,269 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * SortMergeJoin computes an equality join by merging its two inputs in
+ * order of their join fields. An input that is already in ascending order
+ * of its join field, such as a scan of a B+ tree keyed on it, is streamed
+ * as it is; any other input is first sorted with an {@link ExternalSort}.
+ * Only the tuples of child2 that share the current join key are held in
+ * memory, so joining two ordered inputs takes memory proportional to the
+ * largest group of duplicate keys.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of tuples an input sort holds in memory */
+    public static final int DEFAULT_SORT_TUPLES = 1 << 16;
+
+    private JoinPredicate p;
+    private DbIterator child1, child2;
+    private final boolean sorted1, sorted2;
+    private int sortTuples = DEFAULT_SORT_TUPLES;
+
+    private transient TupleDesc td;
+    private transient Input left, right;
+    // the tuple of child1 being joined, and the group of child2 tuples
+    // with the key of the last child1 tuple, and the next of them to join
+    private transient Tuple t1;
+    private transient ArrayList<Tuple> group;
+    private transient Field groupKey;
+    private transient int groupPos;
+
+    /**
+     * Constructor for a join that sorts both of its inputs.
+     *
+     * @param p
+     *            The predicate to use to join the children; must be EQUALS
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Iterator for the right relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, false, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; must be EQUALS
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Iterator for the right relation to join
+     * @param sorted1
+     *            true if child1 already returns its tuples in ascending order
+     *            of the join field
+     * @param sorted2
+     *            true if child2 already returns its tuples in ascending order
+     *            of the join field
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            boolean sorted1, boolean sorted2) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("a merge join needs an equality predicate");
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.sorted1 = sorted1;
+        this.sorted2 = sorted2;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /** @return true if child1 is read in order without sorting it */
+    public boolean isChild1Sorted() {
+        return sorted1;
+    }
+
+    /** @return true if child2 is read in order without sorting it */
+    public boolean isChild2Sorted() {
+        return sorted2;
+    }
+
+    /**
+     * Sets the number of tuples held in memory by the sort of each input
+     * that is not already in order.
+     */
+    public void setSortTuples(int sortTuples) {
+        if (sortTuples < 1)
+            throw new IllegalArgumentException("sortTuples must be positive");
+        this.sortTuples = sortTuples;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        child1.open();
+        child2.open();
+        td = getTupleDesc();
+        start();
+    }
+
+    private void start() throws DbException, TransactionAbortedException {
+        left = new Input(child1, p.getField1(), sorted1);
+        right = new Input(child2, p.getField2(), sorted2);
+        t1 = null;
+        group = new ArrayList<Tuple>();
+        groupKey = null;
+        groupPos = 0;
+    }
+
+    private void stop() {
+        if (left != null)
+            left.close();
+        if (right != null)
+            right.close();
+        left = null;
+        right = null;
+        group = null;
+    }
+
+    public void close() {
+        stop();
+        child1.close();
+        child2.close();
+        super.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        stop();
+        child1.rewind();
+        child2.rewind();
+        start();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Tuples come out in ascending order of the join field.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (t1 != null && groupPos < group.size())
+                return join(t1, group.get(groupPos++));
+            t1 = left.next();
+            if (t1 == null)
+                return null;
+            groupPos = 0;
+            Field key = t1.getField(p.getField1());
+            if (groupKey != null && key.equals(groupKey))
+                continue;
+            // skip child2 up to the key, and collect the tuples that have it
+            group.clear();
+            groupKey = null;
+            Tuple t2;
+            while ((t2 = right.peek()) != null && right.key().compare(Predicate.Op.LESS_THAN, key))
+                right.next();
+            if (t2 != null && right.key().equals(key)) {
+                groupKey = key;
+                while (right.peek() != null && right.key().equals(key)) {
+                    Tuple t = right.next();
+                    t.materialize();
+                    group.add(t);
+                }
+            }
+        }
+    }
+
+    private Tuple join(Tuple t1, Tuple t2) {
+        Tuple tuple = new Tuple(td);
+        int n1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            tuple.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            tuple.setField(n1 + i, t2.getField(i));
+        return tuple;
+    }
+
+    /** One input in join field order, with one tuple of lookahead. */
+    private class Input {
+        private final DbIterator child;
+        private final int field;
+        private ExternalSort sort;
+        private Tuple head;
+
+        Input(DbIterator child, int field, boolean sorted)
+                throws DbException, TransactionAbortedException {
+            this.child = child;
+            this.field = field;
+            if (!sorted) {
+                sort = new ExternalSort(child.getTupleDesc(),
+                        new TupleComparator(field, true), sortTuples);
+                try {
+                    while (child.hasNext())
+                        sort.add(child.next());
+                    sort.finish();
+                } catch (IOException e) {
+                    sort.close();
+                    throw new DbException("could not sort join input: " + e.getMessage());
+                }
+            }
+            advance();
+        }
+
+        Tuple peek() {
+            return head;
+        }
+
+        Field key() {
+            return head.getField(field);
+        }
+
+        Tuple next() throws DbException, TransactionAbortedException {
+            Tuple t = head;
+            if (t != null)
+                advance();
+            return t;
+        }
+
+        private void advance() throws DbException, TransactionAbortedException {
+            if (sort == null) {
+                head = child.hasNext() ? child.next() : null;
+                return;
+            }
+            try {
+                head = sort.next();
+            } catch (IOException e) {
+                throw new DbException("could not read sorted join input: " + e.getMessage());
+            }
+        }
+
+        void close() {
+            if (sort != null)
+                sort.close();
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+
+}
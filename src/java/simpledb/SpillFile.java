@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * SpillFile is a temporary file of tuples for operators that run out of
+ * memory. Tuples are appended in heap page format, a page at a time, and
+ * once writing is finished they are read back in the order they were
+ * added. The file is written and read directly, not through the BufferPool
+ * or the Catalog, since no other transaction ever sees it.
+ * <p>
+ * Usage: {@link #add} tuples, call {@link #finish}, read them with
+ * {@link #next}, and {@link #delete} the file when done.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private final File file;
+    private final int tuplesPerPage;
+    private long size;
+
+    // write side: the page being filled
+    private OutputStream out;
+    private ArrayList<Tuple> page;
+
+    // read side: the tuples of the page being read
+    private DataInputStream in;
+    private Iterator<Tuple> current;
+
+    /**
+     * Creates an empty temporary file for tuples of the given schema.
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("spill", ".dat");
+        this.file.deleteOnExit();
+        this.tuplesPerPage = HeapPage.getNumSlots(td);
+        this.out = new BufferedOutputStream(new FileOutputStream(file));
+        this.page = new ArrayList<Tuple>(tuplesPerPage);
+        this.size = 0;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples added */
+    public long size() {
+        return size;
+    }
+
+    /** Append a tuple to the file. */
+    public void add(Tuple t) throws IOException {
+        if (out == null)
+            throw new IllegalStateException("spill file already finished");
+        t.materialize();
+        page.add(t);
+        size++;
+        if (page.size() == tuplesPerPage)
+            writePage();
+    }
+
+    /** Stop adding tuples and get ready to read them back. */
+    public void finish() throws IOException {
+        if (out == null)
+            return;
+        if (!page.isEmpty())
+            writePage();
+        out.close();
+        out = null;
+        page = null;
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    /** @return the next tuple in the order they were added, or null at the end */
+    public Tuple next() throws IOException {
+        if (in == null)
+            throw new IllegalStateException("spill file not finished");
+        while (current == null || !current.hasNext()) {
+            byte[] data = new byte[BufferPool.getPageSize()];
+            try {
+                in.readFully(data);
+            } catch (EOFException e) {
+                return null;
+            }
+            current = HeapPage.readPageData(td, data).iterator();
+        }
+        return current.next();
+    }
+
+    /** Start reading the tuples again from the first one. */
+    public void rewind() throws IOException {
+        if (in == null)
+            throw new IllegalStateException("spill file not finished");
+        in.close();
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        current = null;
+    }
+
+    /**
+     * Chooses the partition of a tuple from the hash code of its key. Each
+     * level of partitioning mixes the hash differently, so keys that shared
+     * a partition at one level are spread out at the next.
+     *
+     * @return a partition number from 0 to fanout - 1
+     */
+    public static int partition(int hash, int level, int fanout) {
+        int h = (hash ^ level * 0x27D4EB2F) * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return (h & 0x7fffffff) % fanout;
+    }
+
+    /** Close and remove the file. */
+    public void delete() {
+        try {
+            if (out != null)
+                out.close();
+            if (in != null)
+                in.close();
+        } catch (IOException e) {
+            // the file is removed anyway
+        }
+        out = null;
+        in = null;
+        current = null;
+        file.delete();
+    }
+
+    private void writePage() throws IOException {
+        out.write(HeapPage.createPageData(td, page));
+        page.clear();
+    }
+}
@@ -53,6 +53,18 @@ public class StringAggregator implements Aggregator {
     	count.put(f, c);
     }
 
+    public boolean mergeIntoExistingGroup(Tuple tup) {
+    	Field f = gbfield == NO_GROUPING ? null : tup.getField(gbfield);
+    	Integer c = count.get(f);
+    	if (c == null) return false;
+    	count.put(f, c + 1);
+    	return true;
+    }
+
+    public int numGroups() {
+    	return count.size();
+    }
+
     /**
      * Create a DbIterator over group aggregate results.
      *
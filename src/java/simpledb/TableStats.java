@@ -61,6 +61,8 @@ public class TableStats {
 
     private final int baseTups;
     private final int basePages;
+    // pages read by one search of a B+ tree table, 0 for other tables
+    private final int probePages;
     private final int costPerPageIO;
     private final Object[] histograms;
     private final int[] maxs, mins;
@@ -93,8 +95,9 @@ public class TableStats {
         DbFile f = Database.getCatalog().getDatabaseFile(tableid);
         td = f.getTupleDesc();
 
-        if (!(f instanceof HeapFile)) {
+        if (!(f instanceof HeapFile) && !(f instanceof BTreeFile)) {
             basePages = 0;
+            probePages = 0;
             baseTups = 0;
             this.costPerPageIO=ioCostPerPage;
             histograms=null;
@@ -142,7 +145,13 @@ public class TableStats {
             }
         }
 
-        basePages = ((HeapFile) f).numPages();
+        if (f instanceof HeapFile) {
+            basePages = ((HeapFile) f).numPages();
+            probePages = 0;
+        } else {
+            basePages = ((BTreeFile) f).numPages();
+            probePages = ((BTreeFile) f).estimateProbePages();
+        }
         int count = 0;
         try {
             Transaction t = new Transaction();
@@ -189,6 +198,22 @@ public class TableStats {
         //return 0;
     }
 
+    /**
+     * Estimates the cost of reading the tuples of a B+ tree table that
+     * satisfy an index predicate: one search of the tree for the first
+     * matching leaf, then the fraction of its pages that hold the matches.
+     * Other tables can only be scanned.
+     * 
+     * @param selectivityFactor
+     *            The selectivity of the index predicate
+     * @return The estimated cost of the index scan.
+     */
+    public double estimateIndexScanCost(double selectivityFactor) {
+        if (probePages == 0)
+            return estimateScanCost();
+        return (probePages + Math.ceil(basePages * selectivityFactor)) * costPerPageIO;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -0,0 +1,200 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY with a LIMIT: it returns the
+ * first limit tuples of its child in the order of some fields, without sorting
+ * the whole child. The best tuples seen so far are kept in a binary heap
+ * with the worst of them on top, which a better tuple replaces, so reading
+ * N tuples takes O(N log K) time and O(K) memory for a limit of K. Tuples
+ * with equal fields come out in the order the child returned them, as they
+ * do from {@link OrderBy}.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private static final int INITIAL_TUPLES = 16;
+
+    private DbIterator child;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
+    private final int limit;
+    private final TupleComparator comparator;
+
+    // the heap, and the position of each tuple in the child, which breaks
+    // ties; after open, the tuples in order
+    private transient Tuple[] heap;
+    private transient long[] seqs;
+    private transient int size;
+    private transient int pos;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            the number of tuples to return at most
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, limit, child);
+    }
+
+    /**
+     * Creates a new TopN node that orders on several fields, most
+     * significant first, as {@link OrderBy} does.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, DbIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one sort order per ORDER BY field");
+        this.child = child;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = asc.clone();
+        this.limit = limit;
+        this.comparator = new TupleComparator(this.orderByFields, this.ascs);
+    }
+
+    /** @return true if the order of the first field is ascending */
+    public boolean isASC() {
+        return this.ascs[0];
+    }
+
+    /** @return the first field the order is on */
+    public int getOrderByField() {
+        return this.orderByFields[0];
+    }
+
+    /** @return all the fields the order is on, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        heap = new Tuple[Math.min(limit, INITIAL_TUPLES)];
+        seqs = new long[heap.length];
+        size = 0;
+        long seq = 0;
+        while (limit > 0 && child.hasNext()) {
+            Tuple t = child.next();
+            if (size < limit) {
+                if (size == heap.length) {
+                    int n = (int) Math.min(limit, 2L * size);
+                    heap = Arrays.copyOf(heap, n);
+                    seqs = Arrays.copyOf(seqs, n);
+                }
+                t.materialize();
+                heap[size] = t;
+                seqs[size] = seq;
+                siftUp(size++);
+            } else if (comparator.compare(t, heap[0]) < 0) {
+                // a tuple equal to the worst came later, so it is worse
+                t.materialize();
+                heap[0] = t;
+                seqs[0] = seq;
+                siftDown(0, size);
+            }
+            seq++;
+        }
+        // heapsort: move the worst remaining tuple to the end
+        for (int n = size - 1; n > 0; n--) {
+            swap(0, n);
+            siftDown(0, n);
+        }
+        seqs = null;
+        pos = 0;
+        super.open();
+    }
+
+    /** @return true if the tuple at i comes after the one at j */
+    private boolean worse(int i, int j) {
+        int c = comparator.compare(heap[i], heap[j]);
+        return c > 0 || (c == 0 && seqs[i] > seqs[j]);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!worse(i, parent))
+                return;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int n) {
+        while (true) {
+            int worst = i;
+            int left = 2 * i + 1;
+            if (left < n && worse(left, worst))
+                worst = left;
+            if (left + 1 < n && worse(left + 1, worst))
+                worst = left + 1;
+            if (worst == i)
+                return;
+            swap(i, worst);
+            i = worst;
+        }
+    }
+
+    private void swap(int i, int j) {
+        Tuple t = heap[i];
+        heap[i] = heap[j];
+        heap[j] = t;
+        long s = seqs[i];
+        seqs[i] = seqs[j];
+        seqs[j] = s;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        heap = null;
+        seqs = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        pos = 0;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the first tuples of the
+     * child in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (heap != null && pos < size)
+            return heap[pos++];
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
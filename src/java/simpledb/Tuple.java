@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -18,6 +20,13 @@ public class Tuple implements Serializable {
     private RecordId rid;
     private Field[] fields;
 
+    // for a tuple that is a view of a page: the page bytes, the offset of
+    // each field within them, and where this tuple starts. Fields are only
+    // decoded from the bytes when first asked for.
+    private transient byte[] data;
+    private transient int[] offsets;
+    private transient int base;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -32,6 +41,45 @@ public class Tuple implements Serializable {
     	this.fields = new Field[td.numFields()];
     }
 
+    /**
+     * Create a tuple that reads its fields from the bytes of a page as they
+     * are needed. The bytes must not change for as long as the tuple is in
+     * use.
+     *
+     * @param td the schema of this tuple
+     * @param data the bytes holding the tuple
+     * @param offsets the offset of each field from the start of a tuple
+     * @param base the offset of this tuple in data
+     */
+    Tuple(TupleDesc td, byte[] data, int[] offsets, int base) {
+        this(td);
+        this.data = data;
+        this.offsets = offsets;
+        this.base = base;
+    }
+
+    /**
+     * @return true if this tuple reads its fields from data at the given
+     *         offset and none of them were changed since
+     */
+    boolean isViewOf(byte[] data, int base) {
+        return this.data != null && this.data == data && this.base == base;
+    }
+
+    /**
+     * Decode every field not yet decoded and stop reading the page bytes.
+     * Operators that hold on to tuples call this, so that a buffered tuple
+     * costs its own size rather than keeping a whole page alive.
+     */
+    void materialize() {
+        if (data == null)
+            return;
+        for (int i = 0; i < fields.length; i++)
+            getField(i);
+        data = null;
+        offsets = null;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -70,6 +118,7 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
+    	materialize();
     	this.fields[i]=f;
     	
     }
@@ -83,7 +132,12 @@ public class Tuple implements Serializable {
     public Field getField(int i) {
         // some code goes here
     	try {
-    		return this.fields[i];
+    		Field f = this.fields[i];
+    		if (f == null && data != null) {
+    			f = TD.getFieldType(i).decode(data, base + offsets[i]);
+    			this.fields[i] = f;
+    		}
+    		return f;
     	}
     	catch(Exception e) {
     		return null;
@@ -100,9 +154,9 @@ public class Tuple implements Serializable {
      */
     public String toString() {
         // some code goes here
-    	String str = this.fields[0].toString();
+    	String str = getField(0).toString();
     	for(int i =1;i<this.fields.length;i++) {
-    		str+="\t"+this.fields[i].toString();
+    		str+="\t"+getField(i).toString();
     	}
     	return str;
     }
@@ -114,6 +168,7 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
+        materialize();
         return Arrays.asList(fields).iterator();
     }
 
@@ -125,5 +180,12 @@ public class Tuple implements Serializable {
         // some code goes here
     	this.TD=td;
     	this.fields = new Field[td.getSize()];
+    	this.data = null;
+    	this.offsets = null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
     }
 }
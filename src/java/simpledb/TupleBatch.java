@@ -0,0 +1,274 @@
+package simpledb;
+
+/**
+ * TupleBatch holds a batch of rows column by column, for operators that
+ * work on many rows per call instead of one {@link Tuple} at a time.
+ * <p>
+ * Integer columns are kept as plain int arrays, other columns as arrays of
+ * Fields. The Fields of a row read from a page, or copied from a tuple, are
+ * only decoded when first asked for, so rows a filter drops never cost
+ * more than their integers. Which of the stored rows are part of the batch is given by the
+ * selection vector: {@link #getSelection} returns the row numbers of the
+ * selected rows, and {@link #size} says how many of them there are. A
+ * filter narrows a batch by compacting the selection in place and calling
+ * {@link #select}, without moving any column data.
+ * <p>
+ * Operators reuse their batches, so a batch returned from
+ * {@link BatchIterator#nextBatch} is only valid until the next call.
+ */
+public class TupleBatch {
+
+    /** Default number of rows in a batch. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    // per column: an int vector for INT_TYPE columns, a Field vector otherwise
+    private final int[][] ints;
+    private final Field[][] fields;
+    // per column: the column of the source tuple it is, and its offset
+    // within a row stored in page bytes
+    private final int[] sourceCols;
+    private final int[] offsets;
+    // where each row is stored, if anywhere; kept apart so that scans need
+    // not create a RecordId per row
+    private final PageId[] pageIds;
+    private final int[] slots;
+    // what undecoded Fields of each row are read from: page bytes and the
+    // offset of the row in them, or the tuple the row was copied from
+    private final byte[][] data;
+    private final int[] bases;
+    private final Tuple[] sources;
+    // true for a projection, whose rows are not their source tuples
+    private final boolean projected;
+    private int rows;
+
+    private final int[] sel;
+    private int selected;
+
+    /**
+     * Creates an empty batch with room for capacity rows of the given schema.
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        int n = td.numFields();
+        this.ints = new int[n][];
+        this.fields = new Field[n][];
+        this.sourceCols = new int[n];
+        this.offsets = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints[i] = new int[capacity];
+            else
+                fields[i] = new Field[capacity];
+            sourceCols[i] = i;
+            if (i > 0)
+                offsets[i] = offsets[i - 1] + td.getFieldType(i - 1).getLen();
+        }
+        this.pageIds = new PageId[capacity];
+        this.slots = new int[capacity];
+        this.data = new byte[capacity][];
+        this.bases = new int[capacity];
+        this.sources = new Tuple[capacity];
+        this.projected = false;
+        this.sel = new int[capacity];
+    }
+
+    /** Creates a view sharing the given storage; see {@link #project} */
+    private TupleBatch(TupleDesc td, TupleBatch of, int[] cols) {
+        this.td = td;
+        this.capacity = of.capacity;
+        this.ints = new int[cols.length][];
+        this.fields = new Field[cols.length][];
+        this.sourceCols = new int[cols.length];
+        this.offsets = new int[cols.length];
+        for (int i = 0; i < cols.length; i++) {
+            ints[i] = of.ints[cols[i]];
+            fields[i] = of.fields[cols[i]];
+            sourceCols[i] = of.sourceCols[cols[i]];
+            offsets[i] = of.offsets[cols[i]];
+        }
+        this.pageIds = of.pageIds;
+        this.slots = of.slots;
+        this.data = of.data;
+        this.bases = of.bases;
+        this.sources = of.sources;
+        this.projected = true;
+        this.rows = of.rows;
+        this.sel = of.sel;
+        this.selected = of.selected;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of selected rows */
+    public int size() {
+        return selected;
+    }
+
+    /** @return true if no more rows can be added */
+    public boolean isFull() {
+        return rows == capacity;
+    }
+
+    /** Remove all rows. */
+    public void clear() {
+        for (int i = 0; i < rows; i++) {
+            sources[i] = null;
+            data[i] = null;
+            pageIds[i] = null;
+        }
+        for (Field[] col : fields) {
+            if (col != null) {
+                for (int i = 0; i < rows; i++)
+                    col[i] = null;
+            }
+        }
+        rows = 0;
+        selected = 0;
+    }
+
+    /**
+     * @return the selection vector; its first {@link #size} entries are the
+     *         row numbers of the selected rows, in order
+     */
+    public int[] getSelection() {
+        return sel;
+    }
+
+    /**
+     * Keep only the first n entries of the selection vector.
+     */
+    public void select(int n) {
+        if (n < 0 || n > selected)
+            throw new IllegalArgumentException("selection can only shrink");
+        selected = n;
+    }
+
+    /**
+     * Add a row, selected, with its fields still to be set.
+     *
+     * @param pid the page the row is stored on, or null
+     * @param slot the slot of the row on that page
+     * @return the row number of the new row
+     */
+    public int addRow(PageId pid, int slot) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        int row = rows++;
+        pageIds[row] = pid;
+        slots[row] = slot;
+        sel[selected++] = row;
+        return row;
+    }
+
+    /**
+     * Add a row, selected, whose fields are stored in page bytes. Only the
+     * integer fields have to be set; the others are decoded from data when
+     * first asked for, so data must not change while the batch is in use.
+     *
+     * @param pid the page the row is stored on
+     * @param slot the slot of the row on that page
+     * @param data the bytes of the page
+     * @param base the offset of the row in data
+     * @return the row number of the new row
+     */
+    public int addRow(PageId pid, int slot, byte[] data, int base) {
+        int row = addRow(pid, slot);
+        this.data[row] = data;
+        bases[row] = base;
+        return row;
+    }
+
+    /**
+     * Add a copy of a tuple as a new, selected row. Its integer fields are
+     * copied now, the others when first asked for.
+     */
+    public void addTuple(Tuple t) {
+        RecordId rid = t.getRecordId();
+        int row = rid == null ? addRow(null, 0) : addRow(rid.getPageId(), rid.tupleno());
+        for (int i = 0; i < td.numFields(); i++) {
+            if (ints[i] != null)
+                setField(i, row, t.getField(i));
+        }
+        sources[row] = t;
+    }
+
+    /** @return the int vector of an INT_TYPE column */
+    public int[] getIntColumn(int col) {
+        if (ints[col] == null)
+            throw new IllegalArgumentException("not an integer column");
+        return ints[col];
+    }
+
+    public int getInt(int col, int row) {
+        return getIntColumn(col)[row];
+    }
+
+    public void setInt(int col, int row, int value) {
+        getIntColumn(col)[row] = value;
+    }
+
+    /** @return the value of a column of a row as a Field */
+    public Field getField(int col, int row) {
+        if (ints[col] != null)
+            return new IntField(ints[col][row]);
+        Field f = fields[col][row];
+        if (f == null) {
+            if (data[row] != null)
+                f = td.getFieldType(col).decode(data[row], bases[row] + offsets[col]);
+            else if (sources[row] != null)
+                f = sources[row].getField(sourceCols[col]);
+            fields[col][row] = f;
+        }
+        return f;
+    }
+
+    public void setField(int col, int row, Field f) {
+        if (ints[col] != null)
+            ints[col][row] = ((IntField) f).getValue();
+        else
+            fields[col][row] = f;
+    }
+
+    /** @return where a row is stored, or null if it is not from a page */
+    public RecordId getRecordId(int row) {
+        return pageIds[row] == null ? null : new RecordId(pageIds[row], slots[row]);
+    }
+
+    /**
+     * @return the row as a Tuple; the tuple the row was added from, if it
+     *         was added with {@link #addTuple}, and a tuple decoding its
+     *         fields from the page bytes as needed, if it is stored in them
+     */
+    public Tuple getTuple(int row) {
+        if (!projected && sources[row] != null)
+            return sources[row];
+        if (data[row] != null) {
+            Tuple t = new Tuple(td, data[row], offsets, bases[row]);
+            t.setRecordId(getRecordId(row));
+            return t;
+        }
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++)
+            t.setField(i, getField(i, row));
+        t.setRecordId(getRecordId(row));
+        return t;
+    }
+
+    /**
+     * Make a batch of some of the columns of this one. The new batch shares
+     * its rows and selection vector with this batch rather than copying
+     * them, so it is only valid as long as this batch is not changed.
+     *
+     * @param td the schema of the new batch
+     * @param cols for each column of the new batch, the column of this batch
+     *            it is
+     */
+    public TupleBatch project(TupleDesc td, int[] cols) {
+        return new TupleBatch(td, this, cols);
+    }
+}
@@ -24,6 +24,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field decode(byte[] data, int offset) {
+            return new IntField(readInt(data, offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +47,12 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field decode(byte[] data, int offset) {
+            int strLen = Math.max(0, Math.min(STRING_LEN, readInt(data, offset)));
+            return new StringField(new String(data, offset + 4, strLen), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +71,22 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object with the value
+   *   stored at the given offset of data, in the format written by
+   *   {@link Field#serialize}
+   * @param data the bytes to read from
+   * @param offset where in data the field starts
+   */
+    public abstract Field decode(byte[] data, int offset);
+
+  /**
+   * @return the int stored big-endian at the given offset of data, as
+   *   written by DataOutputStream.writeInt
+   */
+    static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
 }
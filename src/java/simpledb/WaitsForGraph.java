@@ -0,0 +1,138 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * WaitsForGraph records which transactions are blocked waiting for locks
+ * held by which other transactions, and detects deadlocks incrementally:
+ * whenever a transaction starts (or continues) waiting, only cycles through
+ * that transaction are looked for, since any older cycle would already have
+ * been broken.
+ * <p>
+ * When a cycle is found the cheapest transaction on it, as judged by the
+ * {@link Cost} function, is chosen as the victim. The youngest transaction
+ * wins ties. The victim is marked as doomed and is expected to abort; if it
+ * is not the transaction that closed the cycle, the caller has to wake it
+ * up so it can notice.
+ * <p>
+ * The graph is only touched by transactions that have to wait, so its
+ * monitor is never on the lock fast path. It never takes any other monitor
+ * while holding its own.
+ *
+ * @Threadsafe
+ */
+public class WaitsForGraph {
+
+    /** Estimates how much work is lost by aborting a transaction. */
+    public interface Cost {
+        public int cost(TransactionId tid);
+    }
+
+    private final Cost cost;
+    private final HashMap<TransactionId, Set<TransactionId>> edges;
+    // the monitor each waiting transaction sleeps on
+    private final HashMap<TransactionId, Object> waitingOn;
+    private final HashSet<TransactionId> doomed;
+
+    public WaitsForGraph(Cost cost) {
+        this.cost = cost;
+        this.edges = new HashMap<TransactionId, Set<TransactionId>>();
+        this.waitingOn = new HashMap<TransactionId, Object>();
+        this.doomed = new HashSet<TransactionId>();
+    }
+
+    /**
+     * Record that tid is waiting for each of holders, replacing whatever it
+     * was waiting for before, and resolve any deadlock this creates.
+     *
+     * @param tid the waiting transaction
+     * @param holders the transactions holding the lock tid wants; tid itself
+     *   is ignored if present
+     * @param monitor the object tid is going to wait on
+     * @return the monitor the chosen victim waits on, if a deadlock was
+     *   found and another transaction was picked as victim; null otherwise
+     * @throws DeadlockException if tid itself was picked as the victim
+     */
+    public synchronized Object waitFor(TransactionId tid,
+            Collection<TransactionId> holders, Object monitor)
+        throws DeadlockException {
+        Set<TransactionId> out = new HashSet<TransactionId>(holders);
+        out.remove(tid);
+        edges.put(tid, out);
+        waitingOn.put(tid, monitor);
+
+        List<TransactionId> cycle = findCycle(tid);
+        if (cycle == null)
+            return null;
+
+        TransactionId victim = null;
+        int victimCost = Integer.MAX_VALUE;
+        for (TransactionId t : cycle) {
+            int c = cost.cost(t);
+            if (victim == null || c < victimCost || (c == victimCost && t.getId() > victim.getId())) {
+                victim = t;
+                victimCost = c;
+            }
+        }
+        Object victimMonitor = waitingOn.get(victim);
+        doomed.add(victim);
+        edges.remove(victim);
+        waitingOn.remove(victim);
+        if (victim.equals(tid))
+            throw new DeadlockException();
+        return victimMonitor;
+    }
+
+    /** Record that tid is no longer waiting. */
+    public synchronized void stopWaiting(TransactionId tid) {
+        edges.remove(tid);
+        waitingOn.remove(tid);
+    }
+
+    /** @return true if tid was picked as a deadlock victim */
+    public synchronized boolean isDoomed(TransactionId tid) {
+        return doomed.contains(tid);
+    }
+
+    /** Forget everything about tid; called when it completes. */
+    public synchronized void remove(TransactionId tid) {
+        edges.remove(tid);
+        waitingOn.remove(tid);
+        doomed.remove(tid);
+    }
+
+    /**
+     * Depth-first search for a path from start back to itself.
+     * @return the transactions on the cycle, or null if there is none
+     */
+    private List<TransactionId> findCycle(TransactionId start) {
+        ArrayList<TransactionId> path = new ArrayList<TransactionId>();
+        path.add(start);
+        if (reaches(start, start, path, new HashSet<TransactionId>()))
+            return path;
+        return null;
+    }
+
+    private boolean reaches(TransactionId from, TransactionId target,
+            List<TransactionId> path, Set<TransactionId> visited) {
+        Set<TransactionId> out = edges.get(from);
+        if (out == null)
+            return false;
+        for (TransactionId next : out) {
+            if (next.equals(target))
+                return true;
+            if (!visited.add(next))
+                continue;
+            path.add(next);
+            if (reaches(next, target, path, visited))
+                return true;
+            path.remove(path.size() - 1);
+        }
+        return false;
+    }
+}
@@ -176,6 +176,53 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate.getNext() computing several aggregates at once
+   */
+  @Test public void multipleAggregates() throws Exception {
+    Aggregate op = new Aggregate(scan1, new int[] { 0 }, new int[] { 1, 1, 1 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MAX });
+    op.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(4,
+        new int[] { 1, 12, 3, 6,
+                    3, 12, 3, 6,
+                    5, 7, 1, 7 }), op);
+  }
+
+  /**
+   * Unit test for Aggregate.getNext() grouping by two fields, one of them
+   * a string
+   */
+  @Test public void compositeGroupBy() throws Exception {
+    DbIterator scan = TestUtil.createTupleList(3,
+        new Object[] { "a", 1, 2,
+                       "a", 1, 4,
+                       "a", 2, 6,
+                       "b", 1, 8 });
+    Aggregate op = new Aggregate(scan, new int[] { 0, 1 }, new int[] { 2, 2 },
+        new Aggregator.Op[] { Aggregator.Op.AVG, Aggregator.Op.MIN });
+    assertEquals(4, op.getTupleDesc().numFields());
+    op.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(4,
+        new Object[] { "a", 1, 3, 2,
+                       "a", 2, 6, 6,
+                       "b", 1, 8, 8 }), op);
+  }
+
+  /**
+   * A SUM that does not fit in the INT result fails instead of wrapping
+   */
+  @Test(expected = DbException.class) public void sumOverflow() throws Exception {
+    DbIterator scan = TestUtil.createTupleList(2,
+        new int[] { 1, Integer.MIN_VALUE,
+                    1, -1 });
+    Aggregate op = new Aggregate(scan, new int[] { 0 }, new int[] { 1, 1 },
+        new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.SUM });
+    op.open();
+    while (op.hasNext())
+      op.next();
+  }
+
   /**
    * JUnit suite target
    */
@@ -83,6 +83,31 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 		assertFalse(page.isSlotUsed(20));
 	}
 
+	/**
+	 * Unit test for BTreeFile.readPage() in memory-mapped mode, including a
+	 * page that was appended after the file was first mapped
+	 */
+	@Test
+	public void readPageMapped() throws Exception {
+		f.setMemoryMapped(true);
+		assertTrue(f.isMemoryMapped());
+		BTreePageId rootPtrPid = new BTreePageId(f.getId(), 0, BTreePageId.ROOT_PTR);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) f.readPage(rootPtrPid);
+		assertEquals(1, rootPtr.getRootId().pageNumber());
+
+		BTreePageId pid = new BTreePageId(f.getId(), 1, BTreePageId.LEAF);
+		BTreeLeafPage page = (BTreeLeafPage) f.readPage(pid);
+		assertEquals(482, page.getNumEmptySlots());
+
+		// grow the file by one page and read it through the mapping
+		BTreePageId newPid = new BTreePageId(f.getId(), 2, BTreePageId.LEAF);
+		f.writePage(new BTreeLeafPage(newPid, page.getPageData(), 0));
+		assertEquals(2, f.numPages());
+		BTreeLeafPage newPage = (BTreeLeafPage) f.readPage(newPid);
+		assertEquals(482, newPage.getNumEmptySlots());
+		assertTrue(newPage.isSlotUsed(1));
+	}
+
 	@Test
 	public void testIteratorBasic() throws Exception {
 		BTreeFile smallFile = BTreeUtility.createRandomBTreeFile(2, 3, null,
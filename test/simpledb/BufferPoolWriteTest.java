@@ -133,6 +133,21 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * A checkpoint flushes dirty pages while holding the LogFile's monitor,
+     * which the page cleaner must not need
+     */
+    @Test(timeout = 10000) public void checkpointWithDirtyPages() throws Exception {
+        Tuple t = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+        Database.getLogFile().logCheckpoint();
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+                t.getRecordId().getPageId(), Permissions.READ_ONLY);
+        assertNull(p.isDirty());
+        HeapPage onDisk = (HeapPage) empty.readPage(t.getRecordId().getPageId());
+        assertEquals(504 - 1, onDisk.getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
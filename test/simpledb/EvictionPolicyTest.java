@@ -0,0 +1,91 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static final EvictionPolicy.Candidates ALL = new EvictionPolicy.Candidates() {
+        public boolean isEvictable(PageId pid) {
+            return true;
+        }
+    };
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * CLOCK gives a recently referenced page a second chance.
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy clock = new ClockEvictionPolicy(3);
+        clock.pageAdded(pid(0));
+        clock.pageAdded(pid(1));
+        clock.pageAdded(pid(2));
+        // first sweep clears every bit, so the oldest page goes first
+        assertEquals(pid(0), clock.chooseVictim(ALL));
+        clock.pageRemoved(pid(0));
+        clock.pageAccessed(pid(1));
+        assertEquals(pid(2), clock.chooseVictim(ALL));
+    }
+
+    /**
+     * CLOCK skips pages the buffer pool refuses to give up.
+     */
+    @Test public void clockRespectsCandidates() {
+        EvictionPolicy clock = new ClockEvictionPolicy(2);
+        clock.pageAdded(pid(0));
+        clock.pageAdded(pid(1));
+        assertEquals(pid(1), clock.chooseVictim(new EvictionPolicy.Candidates() {
+            public boolean isEvictable(PageId pid) {
+                return !pid.equals(pid(0));
+            }
+        }));
+        assertNull(clock.chooseVictim(new EvictionPolicy.Candidates() {
+            public boolean isEvictable(PageId pid) {
+                return false;
+            }
+        }));
+    }
+
+    /**
+     * LRU-2 evicts a page touched once before a page touched twice, even if
+     * the single reference is more recent.
+     */
+    @Test public void lruKPrefersOnceReferenced() {
+        EvictionPolicy lru = new LruKEvictionPolicy(3, 2);
+        lru.pageAdded(pid(0));
+        lru.pageAccessed(pid(0));
+        lru.pageAdded(pid(1));
+        lru.pageAdded(pid(2));
+        assertEquals(pid(1), lru.chooseVictim(ALL));
+        lru.pageRemoved(pid(1));
+        assertEquals(pid(2), lru.chooseVictim(ALL));
+    }
+
+    /**
+     * LRU-K remembers the history of a page after it has been evicted.
+     */
+    @Test public void lruKRetainsHistory() {
+        EvictionPolicy lru = new LruKEvictionPolicy(2, 2);
+        lru.pageAdded(pid(0));
+        lru.pageRemoved(pid(0));
+        lru.pageAdded(pid(1));
+        // pid(0) comes back with two references and outlives pid(1)
+        lru.pageAdded(pid(0));
+        assertEquals(pid(1), lru.chooseVictim(ALL));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -67,6 +67,19 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Building on child2 gives the same tuples, still with the fields of
+   * child1 first
+   */
+  @Test public void eqJoinBuildOnChild2() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2, false);
+    assertEquals(Utility.getTupleDesc(width1 + width2), op.getTupleDesc());
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
     private static final int COLUMNS = 2;
     public void validateJoin(int table1ColumnValue, int table1Rows, int table2ColumnValue,
             int table2Rows)
@@ -130,6 +143,52 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
       validateJoin(1,10,1,30001);
   }
 
+  /**
+   * A join with room for only a few build tuples in memory spills
+   * partitions of both sides and still finds every match, before and after
+   * a rewind
+   */
+  @Test public void spillingJoin() throws Exception {
+    ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 2000, 300, null, t1Tuples);
+    ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 1000, 300, null, t2Tuples);
+
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (ArrayList<Integer> t1 : t1Tuples) {
+      for (ArrayList<Integer> t2 : t2Tuples) {
+        if (t1.get(0).equals(t2.get(0))) {
+          ArrayList<Integer> out = new ArrayList<Integer>(t1);
+          out.addAll(t2);
+          expected.add(out);
+        }
+      }
+    }
+
+    TransactionId tid = new TransactionId();
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin joinOp = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), ""),
+        new SeqScan(tid, table2.getId(), ""), false);
+    joinOp.setMaxBuildTuples(10);
+    SystemTestUtil.matchTuples(joinOp, expected);
+
+    joinOp = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), ""),
+        new SeqScan(tid, table2.getId(), ""));
+    joinOp.setMaxBuildTuples(10);
+    SystemTestUtil.matchTuples(joinOp, expected);
+
+    joinOp.open();
+    joinOp.rewind();
+    int cnt = 0;
+    while (joinOp.hasNext()) {
+      joinOp.next();
+      cnt++;
+    }
+    assertEquals(expected.size(), cnt);
+    joinOp.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
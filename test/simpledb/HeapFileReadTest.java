@@ -77,6 +77,44 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() in memory-mapped mode, including a
+     * page that was appended after the file was first mapped
+     */
+    @Test
+    public void readPageMapped() throws Exception {
+        hf.setMemoryMapped(true);
+        assertTrue(hf.isMemoryMapped());
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertEquals(484, page.getNumEmptySlots());
+        assertTrue(page.isSlotUsed(1));
+
+        HeapPageId newPid = new HeapPageId(hf.getId(), 1);
+        hf.writePage(new HeapPage(newPid, page.getPageData()));
+        assertEquals(2, hf.numPages());
+        HeapPage newPage = (HeapPage) hf.readPage(newPid);
+        assertEquals(484, newPage.getNumEmptySlots());
+        assertTrue(newPage.isSlotUsed(1));
+    }
+
+    /**
+     * A read by an interrupted thread neither fails nor closes the shared
+     * channel, and the thread keeps its interrupt status
+     */
+    @Test
+    public void readPageInterrupted() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Thread.currentThread().interrupt();
+        try {
+            assertEquals(484, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        assertTrue(FileChannelPool.get(hf.getFile()).isOpen());
+        assertEquals(484, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
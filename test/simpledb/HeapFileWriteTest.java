@@ -1,5 +1,8 @@
 package simpledb;
 
+import java.io.File;
+import java.util.ArrayList;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +46,87 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserts skip pages known to be full, the map of full pages survives a
+     * flush, and deletes make room on a page again
+     */
+    @Test public void freeSpaceMap() throws Exception {
+        new File(empty.getFile().getPath() + ".fsm").deleteOnExit();
+        for (int i = 0; i < 504 * 2 + 1; ++i)
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        assertEquals(3, empty.numPages());
+        Database.getBufferPool().flushAllPages();
+        assertEquals(2, new FreeSpaceMap(empty.getFile()).nextCandidate(0));
+
+        HeapPage first = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(empty.getId(), 0), Permissions.READ_WRITE);
+        empty.deleteTuple(tid, first.iterator().next());
+        ArrayList<Page> pages = empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(0, pages.get(0).getId().pageNumber());
+    }
+
+    /**
+     * A page filled by a transaction that aborts is not left marked full
+     */
+    @Test public void freeSpaceMapAbort() throws Exception {
+        new File(empty.getFile().getPath() + ".fsm").deleteOnExit();
+        for (int i = 0; i < 504 + 1; ++i)
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        ArrayList<Page> pages = empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(0, pages.get(0).getId().pageNumber());
+    }
+
+    /**
+     * Bulk appended tuples go to fresh pages, which are logged before they
+     * are written and emptied again if the transaction aborts
+     */
+    @Test public void bulkAppend() throws Exception {
+        new File(empty.getFile().getPath() + ".fsm").deleteOnExit();
+        int records = Database.getLogFile().getTotalRecords();
+        HeapFile.BulkAppender appender = empty.bulkAppender(tid);
+        for (int i = 0; i < 504 * 2 + 10; ++i)
+            appender.append(Utility.getHeapTuple(i, 2));
+        appender.finish();
+        assertEquals(4, empty.numPages());
+        assertEquals(records + 3, Database.getLogFile().getTotalRecords());
+        HeapPageId last = new HeapPageId(empty.getId(), 3);
+        assertTrue(Database.getBufferPool().holdsLock(tid, last));
+        assertEquals(504 - 10, ((HeapPage) empty.readPage(last)).getNumEmptySlots());
+
+        Database.getBufferPool().transactionComplete(tid, false);
+        for (int i = 1; i < 4; i++) {
+            HeapPage page = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), i));
+            assertEquals(504, page.getNumEmptySlots());
+        }
+    }
+
+    /**
+     * Unit test for HeapFile.writePages(), with a gap between runs
+     */
+    @Test public void writePages() throws Exception {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for (int pgNo : new int[] { 0, 1, 3 }) {
+            HeapPage page = new HeapPage(new HeapPageId(empty.getId(), pgNo),
+                    HeapPage.createEmptyPageData());
+            for (int i = 0; i <= pgNo; i++)
+                page.insertTuple(Utility.getHeapTuple(pgNo, 2));
+            pages.add(page);
+        }
+        empty.writePages(pages);
+        assertEquals(4, empty.numPages());
+
+        for (int pgNo : new int[] { 0, 1, 3 }) {
+            HeapPage page = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), pgNo));
+            assertEquals(504 - pgNo - 1, page.getNumEmptySlots());
+        }
+        HeapPage gap = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 2));
+        assertEquals(504, gap.getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
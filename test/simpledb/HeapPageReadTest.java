@@ -10,6 +10,7 @@ import java.util.*;
 
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -99,6 +100,34 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Tuples are decoded from the page bytes on demand: the iterator keeps
+     * returning the tuples it started with while the page changes, and
+     * untouched slots are written back byte for byte
+     */
+    @Test public void lazyTuples() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = it.next();
+        page.deleteTuple(page.iterator().next());
+        page.deleteTuple(page.iterator().next());
+        Tuple second = it.next();
+        assertEquals(EXAMPLE_VALUES[1][1], ((IntField) second.getField(1)).getValue());
+
+        // moving a tuple to another slot moves its values, not its slot
+        page.insertTuple(second);
+        page.insertTuple(first);
+        byte[] data = page.getPageData();
+        HeapPage copy = new HeapPage(pid, data);
+        it = copy.iterator();
+        for (int row : new int[] { 1, 0, 2, 3 }) {
+            Tuple tup = it.next();
+            assertEquals(EXAMPLE_VALUES[row][0], ((IntField) tup.getField(0)).getValue());
+            assertEquals(EXAMPLE_VALUES[row][1], ((IntField) tup.getField(1)).getValue());
+        }
+        assertArrayEquals(data, copy.getPageData());
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
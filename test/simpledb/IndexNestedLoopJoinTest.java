@@ -0,0 +1,209 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Vector;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  DbIterator scan1;
+  ArrayList<ArrayList<Integer>> outerTuples;
+  ArrayList<ArrayList<Integer>> innerTuples;
+  HeapFile heap;
+  BTreeFile index;
+  TransactionId tid;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createIndex() throws Exception {
+    int[] outer = new int[] { 5, 6,
+                              1, 2,
+                              3, 4,
+                              3, 9,
+                              499, 8 };
+    this.scan1 = TestUtil.createTupleList(width1, outer);
+    this.outerTuples = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < outer.length; i += width1) {
+      ArrayList<Integer> t = new ArrayList<Integer>();
+      t.add(outer[i]);
+      t.add(outer[i + 1]);
+      outerTuples.add(t);
+    }
+
+    // a B+ tree keyed on the first of two columns c0 and c1
+    this.innerTuples = new ArrayList<ArrayList<Integer>>();
+    this.heap = SystemTestUtil.createRandomHeapFile(2, 20000, 500, null, innerTuples, "c");
+    Database.getCatalog().addTable(heap, "inlj_heap");
+    File bFile = File.createTempFile("inlj", ".dat");
+    bFile.delete();
+    bFile.deleteOnExit();
+    TransactionId t = new TransactionId();
+    this.index = new BTreeBulkLoader().createIndex(t, "inlj_heap", 0, bFile, "inlj");
+    Database.getBufferPool().transactionComplete(t);
+    this.tid = new TransactionId();
+  }
+
+  private ArrayList<ArrayList<Integer>> expected(Predicate.Op op) {
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (ArrayList<Integer> t1 : outerTuples) {
+      for (ArrayList<Integer> t2 : innerTuples) {
+        if (new IntField(t1.get(0)).compare(op, new IntField(t2.get(0)))) {
+          ArrayList<Integer> out = new ArrayList<Integer>(t1);
+          out.addAll(t2);
+          expected.add(out);
+        }
+      }
+    }
+    return expected;
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    BTreeScan scan2 = new BTreeScan(tid, index.getId(), "b", null);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, scan1, scan2);
+    assertEquals(TupleDesc.merge(scan1.getTupleDesc(), scan2.getTupleDesc()), op.getTupleDesc());
+  }
+
+  /**
+   * Each outer tuple is joined with the tuples an index search finds, and
+   * the join can be rewound
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, scan1,
+        new BTreeScan(tid, index.getId(), "b", null));
+    ArrayList<ArrayList<Integer>> expected = expected(Predicate.Op.EQUALS);
+    SystemTestUtil.matchTuples(op, expected);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    op.rewind();
+    while (op.hasNext()) {
+      op.next();
+      count--;
+    }
+    assertEquals(0, count);
+    op.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Range predicates search the index with the comparison swapped
+   */
+  @Test public void rangeJoin() throws Exception {
+    for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.LESS_THAN,
+        Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN,
+        Predicate.Op.GREATER_THAN_OR_EQ }) {
+      // an outer key that only a few inner keys compare to
+      int key = op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ ? 495 : 4;
+      DbIterator outer = TestUtil.createTupleList(width1, new int[] { key, 1 });
+      ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+      for (ArrayList<Integer> t2 : innerTuples) {
+        if (new IntField(key).compare(op, new IntField(t2.get(0)))) {
+          ArrayList<Integer> out = new ArrayList<Integer>();
+          out.add(key);
+          out.add(1);
+          out.addAll(t2);
+          expected.add(out);
+        }
+      }
+      JoinPredicate pred = new JoinPredicate(0, op, 0);
+      SystemTestUtil.matchTuples(new IndexNestedLoopJoin(pred, outer,
+          new BTreeScan(tid, index.getId(), "b", null)), expected);
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Predicates that a B+ tree search cannot answer are rejected
+   */
+  @Test(expected = IllegalArgumentException.class) public void notEquals() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0);
+    new IndexNestedLoopJoin(pred, scan1, new BTreeScan(tid, index.getId(), "b", null));
+  }
+
+  /**
+   * A few outer tuples probe a large index keyed on the join field, and
+   * many outer tuples or an unknown number of them scan it instead
+   */
+  @Test public void instantiateIndexJoin() throws Exception {
+    LogicalJoinNode lj = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+    DbIterator join = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, heap.getId(), "a"),
+        new SeqScan(tid, index.getId(), "b"), 5, 20000);
+    assertTrue(join instanceof IndexNestedLoopJoin);
+
+    join = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, heap.getId(), "a"),
+        new SeqScan(tid, index.getId(), "b"), 20000, 20000);
+    assertFalse(join instanceof IndexNestedLoopJoin);
+    join = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, heap.getId(), "a"),
+        new SeqScan(tid, index.getId(), "b"));
+    assertFalse(join instanceof IndexNestedLoopJoin);
+
+    // not keyed on the join field
+    lj = new LogicalJoinNode("a", "b", "c0", "c1", Predicate.Op.EQUALS);
+    join = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, heap.getId(), "a"),
+        new SeqScan(tid, index.getId(), "b"), 5, 20000);
+    assertFalse(join instanceof IndexNestedLoopJoin);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * The optimizer only costs a join as an index join when the indexed
+   * table is scanned bare, even if its filters are estimated to keep every
+   * row, since only then does instantiateJoin search the index
+   */
+  @Test public void indexOnlyWithoutFilters() throws Exception {
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(heap.getId(), "a");
+    lp.addScan(index.getId(), "b");
+    JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+    assertEquals(index, jo.baseTableIndex("b", "c0"));
+    assertNull(jo.baseTableIndex("b", "c1"));
+
+    lp.addFilter("b.c0", Predicate.Op.GREATER_THAN_OR_EQ, "0");
+    assertNull(jo.baseTableIndex("b", "c0"));
+  }
+
+  /**
+   * Searching the index for a few outer tuples is estimated to cost less
+   * than scanning it, and the estimate does not change when the join
+   * would not use the index
+   */
+  @Test public void estimateIndexJoinCost() {
+    JoinOptimizer jo = new JoinOptimizer(null, new Vector<LogicalJoinNode>());
+    LogicalJoinNode lj = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+    double cost2 = index.numPages() * 1000.0;
+    assertTrue(jo.estimateJoinCost(lj, 5, 20000, 1000, cost2, index)
+        < jo.estimateJoinCost(lj, 5, 20000, 1000, cost2));
+    assertEquals(jo.estimateJoinCost(lj, 20000, 20000, cost2, cost2),
+        jo.estimateJoinCost(lj, 20000, 20000, cost2, cost2, index), 0.001);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
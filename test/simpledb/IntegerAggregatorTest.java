@@ -126,6 +126,63 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Sums are kept in 64 bits, so an average of large values is exact
+   */
+  @Test public void avgOfLargeValues() throws Exception {
+    DbIterator scan = TestUtil.createTupleList(width1,
+        new int[] { 1, Integer.MAX_VALUE,
+                    1, Integer.MAX_VALUE - 2,
+                    2, Integer.MIN_VALUE,
+                    2, Integer.MIN_VALUE });
+    scan.open();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    DbIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, Integer.MAX_VALUE - 1, 2, Integer.MIN_VALUE }), it);
+  }
+
+  /**
+   * A SUM that does not fit in the INT result fails instead of wrapping
+   */
+  @Test(expected = DbException.class) public void sumOverflow() throws Exception {
+    DbIterator scan = TestUtil.createTupleList(width1,
+        new int[] { 1, Integer.MAX_VALUE,
+                    1, 1 });
+    scan.open();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    agg.iterator().open();
+  }
+
+  /**
+   * Many groups, including negative and zero keys, each get their own count
+   */
+  @Test public void manyGroups() throws Exception {
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.COUNT);
+    int groups = 10000;
+    for (int round = 0; round < 3; round++) {
+      for (int key = -groups / 2; key < groups / 2; key++) {
+        Tuple t = new Tuple(Utility.getTupleDesc(width1));
+        t.setField(0, new IntField(key * 31));
+        t.setField(1, new IntField(round));
+        agg.mergeTupleIntoGroup(t);
+      }
+    }
+    DbIterator it = agg.iterator();
+    it.open();
+    int count = 0;
+    while (it.hasNext()) {
+      assertEquals(3, ((IntField) it.next().getField(1)).getValue());
+      count++;
+    }
+    assertEquals(groups, count);
+  }
+
   /**
    * Test IntegerAggregator.iterator() for DbIterator behaviour
    */
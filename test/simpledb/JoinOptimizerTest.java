@@ -621,4 +621,38 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * An equality join is a hash join that builds on the smaller input,
+     * whichever side of the join it is on
+     */
+    @Test
+    public void instantiateJoinBuildSideTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        LogicalJoinNode j = new LogicalJoinNode(tableName1, tableName2,
+                "c1", "c1", Predicate.Op.EQUALS);
+        DbIterator join = JoinOptimizer.instantiateJoin(j,
+                new SeqScan(tid, tableId1, tableName1),
+                new SeqScan(tid, tableId2, tableName2),
+                stats1.estimateTableCardinality(1.0),
+                stats2.estimateTableCardinality(1.0));
+        Assert.assertTrue(join instanceof HashEquiJoin);
+        Assert.assertTrue(((HashEquiJoin) join).buildsOnChild1());
+
+        j = j.swapInnerOuter();
+        join = JoinOptimizer.instantiateJoin(j,
+                new SeqScan(tid, tableId2, tableName2),
+                new SeqScan(tid, tableId1, tableName1),
+                stats2.estimateTableCardinality(1.0),
+                stats1.estimateTableCardinality(1.0));
+        Assert.assertFalse(((HashEquiJoin) join).buildsOnChild1());
+
+        // other predicates are still nested loops joins
+        j = new LogicalJoinNode(tableName1, tableName2, "c1", "c1",
+                Predicate.Op.LESS_THAN);
+        join = JoinOptimizer.instantiateJoin(j,
+                new SeqScan(tid, tableId1, tableName1),
+                new SeqScan(tid, tableId2, tableName2));
+        Assert.assertTrue(join instanceof Join);
+    }
 }
@@ -0,0 +1,209 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private LockManager lm;
+    private TransactionId tid1;
+    private TransactionId tid2;
+    private PageId p0;
+    private PageId p1;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        lm = new LockManager();
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    /** Acquires a lock in the background and remembers how that went. */
+    private class Acquirer extends Thread {
+        final TransactionId tid;
+        final PageId pid;
+        final Permissions perm;
+        volatile boolean granted = false;
+        volatile boolean aborted = false;
+
+        Acquirer(TransactionId tid, PageId pid, Permissions perm) {
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                lm.acquire(tid, pid, perm);
+                granted = true;
+            } catch (TransactionAbortedException e) {
+                aborted = true;
+                lm.releaseAll(tid);
+            }
+        }
+    }
+
+    private Acquirer startAcquire(TransactionId tid, PageId pid, Permissions perm)
+            throws InterruptedException {
+        Acquirer a = new Acquirer(tid, pid, perm);
+        a.start();
+        a.join(100);
+        return a;
+    }
+
+    /**
+     * Shared locks are compatible with each other.
+     */
+    @Test public void sharedLocks() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_ONLY);
+        lm.acquire(tid2, p0, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(tid1, p0));
+        assertTrue(lm.holdsLock(tid2, p0));
+        assertFalse(lm.holdsExclusive(tid1, p0));
+    }
+
+    /**
+     * An exclusive lock keeps everybody else out, but not other pages.
+     */
+    @Test public void exclusiveLock() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_WRITE);
+        Acquirer a = startAcquire(tid2, p0, Permissions.READ_ONLY);
+        assertFalse(a.granted);
+        lm.acquire(tid2, p1, Permissions.READ_WRITE);
+        assertTrue(lm.holdsExclusive(tid1, p0));
+        assertFalse(lm.holdsLock(tid2, p0));
+
+        lm.releaseAll(tid1);
+        a.join();
+        assertTrue(a.granted);
+    }
+
+    /**
+     * A sole sharer may upgrade; a shared page with two readers may not.
+     */
+    @Test public void upgrade() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_ONLY);
+        lm.acquire(tid1, p0, Permissions.READ_WRITE);
+        assertTrue(lm.holdsExclusive(tid1, p0));
+
+        lm.acquire(tid1, p1, Permissions.READ_ONLY);
+        lm.acquire(tid2, p1, Permissions.READ_ONLY);
+        Acquirer a = startAcquire(tid1, p1, Permissions.READ_WRITE);
+        assertFalse(a.granted);
+        lm.release(tid2, p1);
+        a.join();
+        assertTrue(a.granted);
+        assertTrue(lm.holdsExclusive(tid1, p1));
+    }
+
+    /**
+     * Two transactions waiting for each other form a deadlock; only the one
+     * holding fewer exclusive locks is aborted and the other one proceeds.
+     */
+    @Test public void deadlockVictim() throws Exception {
+        PageId p2 = new HeapPageId(1, 2);
+        lm.acquire(tid1, p0, Permissions.READ_WRITE);
+        lm.acquire(tid1, p2, Permissions.READ_WRITE);
+        lm.acquire(tid2, p1, Permissions.READ_WRITE);
+
+        Acquirer a1 = startAcquire(tid1, p1, Permissions.READ_ONLY);
+        assertFalse(a1.granted);
+        Acquirer a2 = startAcquire(tid2, p0, Permissions.READ_ONLY);
+        a1.join(5000);
+        a2.join(5000);
+
+        assertTrue(a2.aborted);
+        assertTrue(a1.granted);
+        assertFalse(a1.aborted);
+    }
+
+    /**
+     * If the cheapest transaction is already asleep, the transaction that
+     * closes the cycle wakes it up to abort instead of aborting itself.
+     */
+    @Test public void deadlockWakesVictim() throws Exception {
+        PageId p2 = new HeapPageId(1, 2);
+        lm.acquire(tid1, p0, Permissions.READ_WRITE);
+        lm.acquire(tid2, p1, Permissions.READ_WRITE);
+        lm.acquire(tid2, p2, Permissions.READ_WRITE);
+
+        Acquirer a1 = startAcquire(tid1, p1, Permissions.READ_ONLY);
+        assertFalse(a1.granted);
+        Acquirer a2 = startAcquire(tid2, p0, Permissions.READ_ONLY);
+        a1.join(5000);
+        a2.join(5000);
+
+        assertTrue(a1.aborted);
+        assertTrue(a2.granted);
+        assertFalse(a2.aborted);
+    }
+
+    /**
+     * Two readers that both try to upgrade deadlock as well.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_ONLY);
+        lm.acquire(tid2, p0, Permissions.READ_ONLY);
+        Acquirer a1 = startAcquire(tid1, p0, Permissions.READ_WRITE);
+        Acquirer a2 = startAcquire(tid2, p0, Permissions.READ_WRITE);
+        a1.join(5000);
+        a2.join(5000);
+        assertTrue(a1.granted != a2.granted);
+        assertTrue(a1.aborted != a2.aborted);
+    }
+
+    /**
+     * Releasing locks lets waiting transactions in.
+     */
+    @Test public void release() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_WRITE);
+        lm.acquire(tid1, p1, Permissions.READ_ONLY);
+        assertEquals(2, lm.getLockedPages(tid1).size());
+
+        lm.release(tid1, p0);
+        assertFalse(lm.holdsLock(tid1, p0));
+        lm.acquire(tid2, p0, Permissions.READ_WRITE);
+
+        lm.releaseAll(tid1);
+        assertEquals(0, lm.getLockedPages(tid1).size());
+        lm.acquire(tid2, p1, Permissions.READ_WRITE);
+    }
+
+    /**
+     * A blocked transaction is woken up as soon as the holder finishes.
+     */
+    @Test public void wakeUp() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_WRITE);
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // fall through and release early
+                }
+                lm.releaseAll(tid1);
+            }
+        };
+        t.start();
+        lm.acquire(tid2, p0, Permissions.READ_WRITE);
+        assertTrue(lm.holdsExclusive(tid2, p0));
+        t.join();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
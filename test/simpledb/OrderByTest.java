@@ -0,0 +1,173 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  int width = 2;
+  DbIterator scan;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleList() throws Exception {
+    this.scan = TestUtil.createTupleList(width,
+        new int[] { 5, 1,
+                    1, 2,
+                    3, 3,
+                    3, 4,
+                    7, 5,
+                    3, 6,
+                    2, 7 });
+  }
+
+  /**
+   * Ties come out in the order of the child, and reopening returns the same
+   * tuples, not the child's tuples again on top of the first ones
+   */
+  @Test public void ascending() throws Exception {
+    OrderBy op = new OrderBy(0, true, scan);
+    DbIterator expected = TestUtil.createTupleList(width,
+        new int[] { 1, 2,
+                    2, 7,
+                    3, 3,
+                    3, 4,
+                    3, 6,
+                    5, 1,
+                    7, 5 });
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+    op.open();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+  }
+
+  /**
+   * The second field orders tuples equal in the first
+   */
+  @Test public void multiColumn() throws Exception {
+    OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { false, false }, scan);
+    DbIterator expected = TestUtil.createTupleList(width,
+        new int[] { 7, 5,
+                    5, 1,
+                    3, 6,
+                    3, 4,
+                    3, 3,
+                    2, 7,
+                    1, 2 });
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+  }
+
+  /**
+   * A child many times the sort memory is sorted in runs on disk, merged in
+   * more than one pass, and still comes out in order, stable, after a rewind
+   * and after reopening
+   */
+  @Test public void spill() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile table = SystemTestUtil.createRandomHeapFile(width, 20000, 100, null, tuples);
+    TransactionId tid = new TransactionId();
+    SeqScan ss = new SeqScan(tid, table.getId(), "");
+
+    // the order of the scan, sorted stably on the first field descending
+    ArrayList<ArrayList<Integer>> inOrder = new ArrayList<ArrayList<Integer>>();
+    ss.open();
+    while (ss.hasNext()) {
+      Tuple t = ss.next();
+      ArrayList<Integer> row = new ArrayList<Integer>();
+      for (int i = 0; i < width; i++)
+        row.add(((IntField) t.getField(i)).getValue());
+      inOrder.add(row);
+    }
+    ss.close();
+    Collections.sort(inOrder, new Comparator<ArrayList<Integer>>() {
+      public int compare(ArrayList<Integer> t1, ArrayList<Integer> t2) {
+        return t2.get(0).compareTo(t1.get(0));
+      }
+    });
+
+    OrderBy op = new OrderBy(0, false, ss);
+    op.setSortTuples(500);
+    op.open();
+    checkRows(inOrder, op);
+    op.rewind();
+    checkRows(inOrder, op);
+    op.close();
+    op.open();
+    checkRows(inOrder, op);
+    op.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private void checkRows(ArrayList<ArrayList<Integer>> expected, DbIterator op)
+      throws Exception {
+    for (ArrayList<Integer> row : expected) {
+      assertTrue(op.hasNext());
+      Tuple t = op.next();
+      for (int i = 0; i < width; i++)
+        assertEquals((int) row.get(i), ((IntField) t.getField(i)).getValue());
+    }
+    assertFalse(op.hasNext());
+  }
+
+  /**
+   * ORDER BY with several fields is parsed and planned as one OrderBy
+   */
+  @Test public void multiColumnQuery() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile table = SystemTestUtil.createRandomHeapFile(width, 1000, 10, null, tuples, "c");
+    Database.getCatalog().addTable(table, "sorted");
+    TableStats.setTableStats("sorted", new TableStats(table.getId(), 10));
+    TransactionId tid = new TransactionId();
+
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT sorted.c0, sorted.c1 FROM sorted ORDER BY sorted.c0, sorted.c1 DESC;");
+    DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof OrderBy);
+    int count = 0;
+    int[] last = null;
+    plan.open();
+    while (plan.hasNext()) {
+      Tuple t = plan.next();
+      int[] row = { ((IntField) t.getField(0)).getValue(),
+          ((IntField) t.getField(1)).getValue() };
+      if (last != null)
+        assertTrue(last[0] < row[0] || (last[0] == row[0] && last[1] >= row[1]));
+      last = row;
+      count++;
+    }
+    assertEquals(1000, count);
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
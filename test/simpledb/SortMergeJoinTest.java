@@ -0,0 +1,149 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  DbIterator scan1;
+  DbIterator scan2;
+  DbIterator eqJoin;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 5, 6,
+                    1, 2,
+                    3, 4,
+                    3, 9,
+                    7, 8 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 4, 5, 6,
+                    3, 4, 5,
+                    1, 2, 3,
+                    3, 0, 0,
+                    5, 6, 7 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    3, 4, 3, 0, 0,
+                    3, 9, 3, 4, 5,
+                    3, 9, 3, 0, 0,
+                    5, 6, 5, 6, 7 });
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    assertEquals(Utility.getTupleDesc(width1 + width2), op.getTupleDesc());
+  }
+
+  /**
+   * Unsorted inputs, with duplicate keys on both sides, are sorted and
+   * merged, and come out in join key order
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.setSortTuples(2);
+    op.open();
+    int last = Integer.MIN_VALUE;
+    int count = 0;
+    while (op.hasNext()) {
+      int key = ((IntField) op.next().getField(0)).getValue();
+      assertTrue(key >= last);
+      last = key;
+      count++;
+    }
+    assertEquals(6, count);
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Only equality predicates can be merged
+   */
+  @Test(expected = IllegalArgumentException.class) public void notEquals() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+    new SortMergeJoin(pred, scan1, scan2);
+  }
+
+  /**
+   * Two scans of B+ trees keyed on the join field are merged as they are,
+   * and find every match
+   */
+  @Test public void indexOrderedJoin() throws Exception {
+    ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+    BTreeFile table1 = createIndex(2000, t1Tuples, "smja");
+    ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+    BTreeFile table2 = createIndex(1000, t2Tuples, "smjb");
+
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (ArrayList<Integer> t1 : t1Tuples) {
+      for (ArrayList<Integer> t2 : t2Tuples) {
+        if (t1.get(0).equals(t2.get(0))) {
+          ArrayList<Integer> out = new ArrayList<Integer>(t1);
+          out.addAll(t2);
+          expected.add(out);
+        }
+      }
+    }
+
+    TransactionId tid = new TransactionId();
+    LogicalJoinNode lj = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+    DbIterator join = JoinOptimizer.instantiateJoin(lj,
+        new SeqScan(tid, table1.getId(), "a"), new SeqScan(tid, table2.getId(), "b"));
+    assertTrue(join instanceof SortMergeJoin);
+    SystemTestUtil.matchTuples(join, expected);
+
+    // not ordered on the join field
+    lj = new LogicalJoinNode("a", "b", "c1", "c1", Predicate.Op.EQUALS);
+    join = JoinOptimizer.instantiateJoin(lj,
+        new SeqScan(tid, table1.getId(), "a"), new SeqScan(tid, table2.getId(), "b"));
+    assertFalse(join instanceof SortMergeJoin);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * @return a B+ tree keyed on the first of two columns c0 and c1, holding
+   *         random tuples from 0 to 500
+   */
+  private BTreeFile createIndex(int rows, ArrayList<ArrayList<Integer>> tuples, String name)
+      throws Exception {
+    HeapFile heap = SystemTestUtil.createRandomHeapFile(2, rows, 500, null, tuples, "c");
+    Database.getCatalog().addTable(heap, name + "_heap");
+    File bFile = File.createTempFile(name, ".dat");
+    bFile.delete();
+    bFile.deleteOnExit();
+    TransactionId tid = new TransactionId();
+    BTreeFile index = new BTreeBulkLoader().createIndex(tid, name + "_heap", 0, bFile, name);
+    Database.getBufferPool().transactionComplete(tid);
+    return index;
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
@@ -0,0 +1,189 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  int width = 2;
+  DbIterator scan;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleList() throws Exception {
+    this.scan = TestUtil.createTupleList(width,
+        new int[] { 5, 1,
+                    1, 2,
+                    3, 3,
+                    3, 4,
+                    7, 5,
+                    3, 6,
+                    2, 7 });
+  }
+
+  /**
+   * The first tuples in order, with ties in the order of the child, as an
+   * OrderBy returns them
+   */
+  @Test public void ascending() throws Exception {
+    TopN op = new TopN(0, true, 4, scan);
+    DbIterator expected = TestUtil.createTupleList(width,
+        new int[] { 1, 2,
+                    2, 7,
+                    3, 3,
+                    3, 4 });
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+
+    // the same after a rewind and after reopening
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+    op.open();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+  }
+
+  @Test public void descending() throws Exception {
+    TopN op = new TopN(0, false, 2, scan);
+    DbIterator expected = TestUtil.createTupleList(width,
+        new int[] { 7, 5,
+                    5, 1 });
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * A limit of at least the size of the child returns all of it sorted, and
+   * a limit of 0 nothing
+   */
+  @Test public void limits() throws Exception {
+    TopN op = new TopN(0, true, 100, scan);
+    OrderBy sorted = new OrderBy(0, true, TestUtil.createTupleList(width,
+        new int[] { 5, 1, 1, 2, 3, 3, 3, 4, 7, 5, 3, 6, 2, 7 }));
+    op.open();
+    sorted.open();
+    TestUtil.compareDbIterators(sorted, op);
+    op.close();
+
+    op = new TopN(0, true, 0, scan);
+    op.open();
+    assertFalse(op.hasNext());
+  }
+
+  /**
+   * A large random child gives the same first tuples as sorting all of it
+   */
+  @Test public void random() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile table = SystemTestUtil.createRandomHeapFile(width, 5000, 1000, null, tuples);
+    Collections.sort(tuples, new Comparator<ArrayList<Integer>>() {
+      public int compare(ArrayList<Integer> t1, ArrayList<Integer> t2) {
+        return t2.get(1).compareTo(t1.get(1));
+      }
+    });
+    TransactionId tid = new TransactionId();
+    TopN op = new TopN(1, false, 100, new SeqScan(tid, table.getId(), ""));
+    op.open();
+    int last = Integer.MAX_VALUE;
+    for (int i = 0; i < 100; i++) {
+      assertTrue(op.hasNext());
+      int value = ((IntField) op.next().getField(1)).getValue();
+      assertTrue(value <= last);
+      assertEquals((int) tuples.get(i).get(1), value);
+      last = value;
+    }
+    assertFalse(op.hasNext());
+    op.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * LIMIT is parsed and planned as a TopN with ORDER BY and as a Limit
+   * without
+   */
+  @Test public void limitQuery() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile table = SystemTestUtil.createRandomHeapFile(width, 1000, 1000, null, tuples, "c");
+    Database.getCatalog().addTable(table, "topn");
+    TableStats.setTableStats("topn", new TableStats(table.getId(), 10));
+    TransactionId tid = new TransactionId();
+
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT topn.c0, topn.c1 FROM topn ORDER BY topn.c1 DESC LIMIT 10;");
+    assertEquals(10, lp.getLimit());
+    DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+    int count = 0;
+    plan.open();
+    while (plan.hasNext()) {
+      plan.next();
+      count++;
+    }
+    assertEquals(10, count);
+    plan.close();
+
+    lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM topn limit 3;");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof Limit);
+    count = 0;
+    plan.open();
+    while (plan.hasNext()) {
+      plan.next();
+      count++;
+    }
+    assertEquals(3, count);
+    plan.close();
+
+    lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM topn;");
+    assertEquals(-1, lp.getLimit());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * LIMIT on anything but a SELECT is rejected rather than ignored
+   */
+  @Test public void limitOnlyOnSelect() throws Exception {
+    HeapFile table = SystemTestUtil.createRandomHeapFile(width, 50, 1000, null, null, "c");
+    Database.getCatalog().addTable(table, "topn");
+    TableStats.setTableStats("topn", new TableStats(table.getId(), 10));
+
+    new Parser().processNextStatement("DELETE FROM topn WHERE topn.c0 >= 0 LIMIT 1;");
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, table.getId(), "");
+    scan.open();
+    int count = 0;
+    while (scan.hasNext()) {
+      scan.next();
+      count++;
+    }
+    assertEquals(50, count);
+    scan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
@@ -0,0 +1,163 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 3000;
+
+  private TransactionId tid;
+  private HeapFile table;
+  private ArrayList<ArrayList<Integer>> tuples;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void setUp() throws Exception {
+    tid = new TransactionId();
+    tuples = new ArrayList<ArrayList<Integer>>();
+    table = SystemTestUtil.createRandomHeapFile(3, ROWS, 100, null, tuples);
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A scan returns every row once, in file order, a batch at a time
+   */
+  @Test public void scanBatches() throws Exception {
+    SeqScan scan = new SeqScan(tid, table.getId(), "t");
+    scan.open();
+    int row = 0;
+    TupleBatch batch;
+    while ((batch = scan.nextBatch()) != null) {
+      assertTrue(batch.size() <= TupleBatch.DEFAULT_CAPACITY);
+      int[] sel = batch.getSelection();
+      for (int i = 0; i < batch.size(); i++) {
+        for (int col = 0; col < 3; col++)
+          assertEquals((int) tuples.get(row).get(col), batch.getInt(col, sel[i]));
+        assertEquals(table.getId(), batch.getRecordId(sel[i]).getPageId().getTableId());
+        row++;
+      }
+    }
+    assertEquals(ROWS, row);
+    assertNull(scan.nextBatch());
+    scan.close();
+  }
+
+  /**
+   * Filter, Project and Aggregate over batches give the same answer as
+   * computing it by hand
+   */
+  @Test public void batchPipeline() throws Exception {
+    int expected = 0;
+    for (ArrayList<Integer> t : tuples) {
+      if (t.get(0) < 50)
+        expected += t.get(2);
+    }
+
+    SeqScan scan = new SeqScan(tid, table.getId(), "t");
+    Filter filter = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(50)), scan);
+    ArrayList<Integer> fields = new ArrayList<Integer>();
+    fields.add(2);
+    fields.add(0);
+    Project project = new Project(fields, new Type[] { Type.INT_TYPE, Type.INT_TYPE }, filter);
+    Aggregate sum = new Aggregate(project, 0, Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+    sum.open();
+    assertEquals(expected, ((IntField) sum.next().getField(0)).getValue());
+    assertTrue(TestUtil.checkExhausted(sum));
+
+    // the same pipeline one tuple at a time
+    project.rewind();
+    int total = 0;
+    while (project.hasNext()) {
+      Tuple t = project.next();
+      assertTrue(((IntField) t.getField(1)).getValue() < 50);
+      total += ((IntField) t.getField(0)).getValue();
+    }
+    assertEquals(expected, total);
+    sum.close();
+  }
+
+  /**
+   * String columns are decoded from the pages only when asked for, through
+   * a filter and a projection alike
+   */
+  @Test public void stringColumns() throws Exception {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE },
+        new String[] { "c0", "c1" });
+    File f = File.createTempFile("strings", ".dat");
+    f.deleteOnExit();
+    HeapFile strings = new HeapFile(f, td);
+    Database.getCatalog().addTable(strings, SystemTestUtil.getUUID());
+    HeapFile.BulkAppender appender = strings.bulkAppender(null);
+    for (int i = 0; i < ROWS; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(i));
+      t.setField(1, new StringField("s" + i, Type.STRING_LEN));
+      appender.append(t);
+    }
+    appender.finish();
+
+    SeqScan scan = new SeqScan(tid, strings.getId(), "t");
+    Filter filter = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ,
+        new IntField(ROWS - 10)), scan);
+    ArrayList<Integer> fields = new ArrayList<Integer>();
+    fields.add(1);
+    Project project = new Project(fields, new Type[] { Type.STRING_TYPE }, filter);
+    project.open();
+    int seen = 0;
+    TupleBatch batch;
+    while ((batch = project.nextBatch()) != null) {
+      int[] sel = batch.getSelection();
+      for (int i = 0; i < batch.size(); i++) {
+        String expected = "s" + (ROWS - 10 + seen);
+        assertEquals(expected, ((StringField) batch.getField(0, sel[i])).getValue());
+        Tuple t = batch.getTuple(sel[i]);
+        assertEquals(1, t.getTupleDesc().numFields());
+        assertEquals(expected, ((StringField) t.getField(0)).getValue());
+        assertEquals(strings.getId(), t.getRecordId().getPageId().getTableId());
+        seen++;
+      }
+    }
+    assertEquals(10, seen);
+    project.close();
+  }
+
+  /**
+   * An operator without batch support is read through an adapter
+   */
+  @Test public void adapter() throws Exception {
+    DbIterator mock = new TestUtil.MockScan(-5, 5, 2);
+    Filter filter = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(3)), mock);
+    filter.open();
+    TupleBatch batch = filter.nextBatch();
+    assertEquals(2, batch.size());
+    assertEquals(3, batch.getInt(0, batch.getSelection()[0]));
+    assertEquals(4, batch.getInt(1, batch.getSelection()[1]));
+    assertNull(filter.nextBatch());
+    filter.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TupleBatchTest.class);
+  }
+}
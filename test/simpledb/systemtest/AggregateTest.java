@@ -7,6 +7,8 @@ import java.util.Map;
 
 import simpledb.*;
 
+import static org.junit.Assert.assertEquals;
+
 import org.junit.Test;
 
 public class AggregateTest extends SimpleDbTestBase {
@@ -113,6 +115,77 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    /**
+     * A query with several aggregates and two GROUP BY fields is planned as
+     * a single Aggregate
+     */
+    @Test public void testMultipleAggregatesQuery()
+            throws IOException, DbException, TransactionAbortedException, ParsingException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, ROWS, 4, null, createdTuples, "c");
+        Database.getCatalog().addTable(table, "aggt");
+        TableStats.setTableStats("aggt", new TableStats(table.getId(), 10));
+
+        // c0, c1, COUNT(*), SUM(c2), MAX(c2) for each group
+        HashMap<ArrayList<Integer>, ArrayList<Integer>> groups =
+                new HashMap<ArrayList<Integer>, ArrayList<Integer>>();
+        for (ArrayList<Integer> t : createdTuples) {
+            ArrayList<Integer> key = new ArrayList<Integer>(t.subList(0, 2));
+            ArrayList<Integer> result = groups.get(key);
+            if (result == null) {
+                result = new ArrayList<Integer>(key);
+                result.add(0);
+                result.add(0);
+                result.add(Integer.MIN_VALUE);
+                groups.put(key, result);
+            }
+            result.set(2, result.get(2) + 1);
+            result.set(3, result.get(3) + t.get(2));
+            result.set(4, Math.max(result.get(4), t.get(2)));
+        }
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT aggt.c0, aggt.c1, COUNT(*), SUM(aggt.c2), MAX(aggt.c2) FROM aggt "
+                + "GROUP BY aggt.c0, aggt.c1;");
+        DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        SystemTestUtil.matchTuples(plan,
+                new ArrayList<ArrayList<Integer>>(groups.values()));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * An aggregate with room for only a few groups in memory spills the rest
+     * to disk, over several passes, and still finds every group
+     */
+    @Test public void testSpillingAggregate()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 4 * ROWS, 2048, null, createdTuples);
+        ArrayList<ArrayList<Integer>> expected =
+                aggregate(createdTuples, Aggregator.Op.SUM, 1, 0);
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, table.getId(), "");
+        Aggregate ag = new Aggregate(ss, 1, 0, Aggregator.Op.SUM);
+        ag.setMaxGroups(8);
+        SystemTestUtil.matchTuples(ag, expected);
+
+        // the same holds after a rewind
+        ag.open();
+        ag.rewind();
+        int groups = 0;
+        while (ag.hasNext()) {
+            ag.next();
+            groups++;
+        }
+        assertEquals(expected.size(), groups);
+        ag.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
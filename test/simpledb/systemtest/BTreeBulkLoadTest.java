@@ -0,0 +1,153 @@
+package simpledb.systemtest;
+
+import simpledb.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private File emptyFile() throws Exception {
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		return f;
+	}
+
+	private BTreeFile load(int rows, double fillFactor, int sortTuples,
+			ArrayList<ArrayList<Integer>> tuples) throws Exception {
+		HeapFile source = SystemTestUtil.createRandomHeapFile(2, rows, null, tuples);
+		String name = Database.getCatalog().getTableName(source.getId());
+		BTreeBulkLoader loader = new BTreeBulkLoader(fillFactor, sortTuples);
+		return loader.createIndex(tid, name, 1, emptyFile(), "bulk_" + name);
+	}
+
+	/**
+	 * A tree several levels deep, sorted through many runs, passes the
+	 * checker and holds every tuple of the source table.
+	 */
+	@Test public void loadMultiLevelTree() throws Exception {
+		BufferPool.setPageSize(512);
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bf = load(20000, 0.7, 1000, tuples);
+
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		assertEquals(bf.numPages(), rootPtr.getRootId().pageNumber());
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		SystemTestUtil.matchTuples(bf, tid, tuples);
+
+		// the tree takes ordinary inserts afterwards
+		for (int i = 0; i < 500; i++) {
+			Tuple t = BTreeUtility.getBTreeTuple(i, 2);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+			tuples.add(BTreeUtility.tupleToList(t));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		SystemTestUtil.matchTuples(bf, tid, tuples);
+	}
+
+	/**
+	 * Full pages with a fill factor of 1; the leaves come first in the file.
+	 */
+	@Test public void fillFactor() throws Exception {
+		BufferPool.setPageSize(512);
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bf = load(61 * 40, 1.0, 100000, tuples);
+
+		BTreeLeafPage first = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				new BTreePageId(bf.getId(), 1, BTreePageId.LEAF), Permissions.READ_ONLY);
+		assertEquals(61, first.getMaxTuples());
+		assertEquals(0, first.getNumEmptySlots());
+		// 40 leaves under one internal root
+		assertEquals(41, bf.numPages());
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+	}
+
+	/**
+	 * A table that fits on one page becomes a single leaf root, and an empty
+	 * table an empty tree.
+	 */
+	@Test public void smallTables() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bf = load(10, 0.9, 100, tuples);
+		assertEquals(1, bf.numPages());
+		SystemTestUtil.matchTuples(bf, tid, tuples);
+
+		tuples.clear();
+		bf = load(0, 0.9, 100, tuples);
+		assertEquals(1, bf.numPages());
+		SystemTestUtil.matchTuples(bf, tid, tuples);
+	}
+
+	/**
+	 * A load that fails part way leaves neither a table in the Catalog nor
+	 * a file behind.
+	 */
+	@Test public void failedLoad() throws Exception {
+		final TupleDesc td = Utility.getTupleDesc(2);
+		DbFileIterator failing = new DbFileIterator() {
+			private int returned = 0;
+			public void open() {
+			}
+			public boolean hasNext() {
+				return true;
+			}
+			public Tuple next() throws DbException {
+				if(returned++ == 100) {
+					throw new DbException("source failed");
+				}
+				return Utility.getHeapTuple(returned, 2);
+			}
+			public void rewind() {
+			}
+			public void close() {
+			}
+		};
+		File f = emptyFile();
+		try {
+			new BTreeBulkLoader().load(failing, td, 0, f, "failed_bulk");
+			fail("expected DbException");
+		} catch(DbException e) {
+			// expected
+		}
+		try {
+			Database.getCatalog().getTableId("failed_bulk");
+			fail("half-written tree is still in the Catalog");
+		} catch(NoSuchElementException e) {
+			// expected
+		}
+		assertFalse(f.exists());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
@@ -282,6 +282,68 @@ public class BTreeScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    /**
+     * Test that the planner answers a selective filter on the key of a B+
+     * tree table by searching the tree, and still scans it otherwise
+     */
+    @Test public void testIndexScanPlan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 20000, 500, null, tuples, "c");
+        Database.getCatalog().addTable(heap, "ixplan_heap");
+        File bFile = File.createTempFile("ixplan", ".dat");
+        bFile.delete();
+        bFile.deleteOnExit();
+        TransactionId tid = new TransactionId();
+        BTreeFile f = new BTreeBulkLoader().createIndex(tid, "ixplan_heap", 0, bFile, "ixplan");
+        Database.getBufferPool().transactionComplete(tid);
+
+        TableStats stats = new TableStats(f.getId(), 1000);
+        TableStats.setTableStats("ixplan", stats);
+        assertEquals(tuples.size(), stats.totalTuples());
+        assertTrue(stats.estimateIndexScanCost(0.01) < stats.estimateScanCost());
+
+        // a point query, with another filter on top of the search
+        tid = new TransactionId();
+        DbIterator plan = physicalPlan(tid,
+                "SELECT * FROM ixplan WHERE ixplan.c0 = 7 AND ixplan.c1 > 100;");
+        assertTrue(leaf(plan) instanceof BTreeScan);
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) == 7 && t.get(1) > 100)
+                expected.add(t);
+        }
+        SystemTestUtil.matchTuples(plan, expected);
+
+        // a range query
+        plan = physicalPlan(tid, "SELECT * FROM ixplan WHERE ixplan.c0 < 5;");
+        assertTrue(leaf(plan) instanceof BTreeScan);
+        expected.clear();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) < 5)
+                expected.add(t);
+        }
+        SystemTestUtil.matchTuples(plan, expected);
+
+        // most of the table matches, or the filter is not on the key
+        plan = physicalPlan(tid, "SELECT * FROM ixplan WHERE ixplan.c0 > 5;");
+        assertTrue(leaf(plan) instanceof SeqScan);
+        plan = physicalPlan(tid, "SELECT * FROM ixplan WHERE ixplan.c1 = 7;");
+        assertTrue(leaf(plan) instanceof SeqScan);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private DbIterator physicalPlan(TransactionId tid, String query) throws Exception {
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, query);
+        return lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    }
+
+    /** @return the scan at the bottom of a plan of a single table */
+    private DbIterator leaf(DbIterator plan) {
+        while (plan instanceof Operator)
+            plan = ((Operator) plan).getChildren()[0];
+        return plan;
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(BTreeScanTest.class);
@@ -4,6 +4,7 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
@@ -40,6 +41,68 @@ public class EvictionTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Pages that were looked up directly must survive a sequential scan of a
+     * table several times larger than the buffer pool.
+     */
+    @Test public void testScanDoesNotEvictHotPages() throws IOException, DbException, TransactionAbortedException {
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, 504*4, null, null);
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504*BUFFER_PAGES*4, null, null);
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < hot.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+
+        SeqScan scan = new SeqScan(tid, big.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(504*BUFFER_PAGES*4, count);
+
+        for (int i = 0; i < hot.numPages(); i++)
+            assertTrue(bp.buffer.containsKey(new HeapPageId(hot.getId(), i)));
+    }
+
+    /**
+     * A scan stages the pages after the one it is reading in the background,
+     * without locking them.
+     */
+    @Test public void testScanPrefetchesAhead() throws Exception {
+        final HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504*20, null, null);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        int depth = bp.getPrefetchDepth();
+        assertTrue(depth > 0);
+        TransactionId tid = new TransactionId();
+        Page first = bp.getScanPage(tid, new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+        Prefetcher prefetcher = new Prefetcher(new Prefetcher.Successor() {
+            public PageId next(Page page) {
+                int pgNo = page.getId().pageNumber() + 1;
+                return pgNo < f.numPages() ? new HeapPageId(f.getId(), pgNo) : null;
+            }
+        });
+        Future<?> readAhead = prefetcher.advance(first);
+        assertNotNull(readAhead);
+        readAhead.get();
+        for (int i = 1; i <= depth; i++)
+            assertTrue(bp.buffer.containsKey(new HeapPageId(f.getId(), i)));
+        assertFalse(bp.holdsLock(tid, new HeapPageId(f.getId(), depth)));
+        prefetcher.close();
+
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(504*20, count);
+    }
+
 //    public static void insertRow(HeapFile f, Transaction t) throws DbException,
 //            TransactionAbortedException {
 //        // Create a row to insert
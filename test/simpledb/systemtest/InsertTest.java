@@ -68,6 +68,11 @@ public class InsertTest extends SimpleDbTestBase {
         validateInsert(1, 1, 1);
     }
 
+    @Test public void testBulkInsert()
+            throws IOException, DbException, TransactionAbortedException {
+        validateInsert(2, Insert.BULK_INSERT_TUPLES * 3, 10);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(InsertTest.class);